@@ -0,0 +1,111 @@
+/**
+ *
+ */
+package org.agave.client.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Base64;
+
+import org.agave.client.auth.JWTClient;
+
+/**
+ * Generates tenant key pairs and gateway style signed JWT locally so the
+ * benchmarks need no tenant server. Every generated tenant's public key is
+ * registered with {@link JWTClient#registerTenantPublicKey(String, RSAPublicKey)}.
+ *
+ * @author dooley
+ *
+ */
+class BenchmarkTokens {
+
+	private static final Base64.Encoder BASE64URL = Base64.getUrlEncoder().withoutPadding();
+
+	private static final String HEADER = BASE64URL.encodeToString(
+			"{\"typ\":\"JWT\",\"alg\":\"SHA256withRSA\",\"x5t\":\"benchmark\"}".getBytes(StandardCharsets.UTF_8));
+
+	private final String[] tenantIds;
+	private final PrivateKey[] privateKeys;
+	private final RSAPublicKey[] publicKeys;
+
+	/**
+	 * @param tenantCount number of tenants to create keys for
+	 * @throws Exception if the key pairs cannot be generated
+	 */
+	public BenchmarkTokens(int tenantCount) throws Exception {
+		tenantIds = new String[tenantCount];
+		privateKeys = new PrivateKey[tenantCount];
+		publicKeys = new RSAPublicKey[tenantCount];
+
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		for (int i = 0; i < tenantCount; i++) {
+			KeyPair keyPair = generator.generateKeyPair();
+			tenantIds[i] = "bench" + i + ".agaveapi.co";
+			privateKeys[i] = keyPair.getPrivate();
+			publicKeys[i] = (RSAPublicKey)keyPair.getPublic();
+			JWTClient.registerTenantPublicKey(tenantIds[i], publicKeys[i]);
+		}
+	}
+
+	/**
+	 * @return the number of tenants
+	 */
+	public int getTenantCount() {
+		return tenantIds.length;
+	}
+
+	/**
+	 * @param tenant index of the tenant
+	 * @return the id of the tenant
+	 */
+	public String getTenantId(int tenant) {
+		return tenantIds[tenant];
+	}
+
+	/**
+	 * @param tenant index of the tenant
+	 * @return the public key registered for the tenant
+	 */
+	public RSAPublicKey getPublicKey(int tenant) {
+		return publicKeys[tenant];
+	}
+
+	/**
+	 * Signs a token for the tenant whose payload is padded with role claims
+	 * to roughly {@code claimBytes} bytes before encoding.
+	 *
+	 * @param tenant index of the tenant whose key signs the token
+	 * @param username end user of the token, making each token unique
+	 * @param claimBytes approximate size of the json payload
+	 * @param expiresIn seconds until the token expires, negative for an expired token
+	 * @return the compact serialized JWT
+	 * @throws Exception if the token cannot be signed
+	 */
+	public String sign(int tenant, String username, int claimBytes, long expiresIn) throws Exception {
+		String tenantId = tenantIds[tenant];
+		StringBuilder payload = new StringBuilder(claimBytes + 256)
+				.append("{\"iss\":\"wso2.org/products/am\"")
+				.append(",\"exp\":").append(System.currentTimeMillis() / 1000 + expiresIn)
+				.append(",\"http://wso2.org/claims/subscriber\":\"").append(username).append('"')
+				.append(",\"http://wso2.org/claims/enduser\":\"").append(username).append("@carbon.super\"")
+				.append(",\"http://wso2.org/claims/enduserTenantId\":\"-9999\"")
+				.append(",\"http://wso2.org/claims/applicationid\":\"5\"")
+				.append(",\"http://wso2.org/claims/role\":\"Internal/everyone");
+		for (int i = 0; payload.length() < claimBytes; i++) {
+			payload.append(",Internal/").append(tenantId).append("_role_").append(i);
+		}
+		payload.append("\"}");
+
+		String signingInput = HEADER + "." + BASE64URL.encodeToString(payload.toString().getBytes(StandardCharsets.UTF_8));
+
+		Signature signer = Signature.getInstance("SHA256withRSA");
+		signer.initSign(privateKeys[tenant]);
+		signer.update(signingInput.getBytes(StandardCharsets.US_ASCII));
+		return signingInput + "." + BASE64URL.encodeToString(signer.sign());
+	}
+}
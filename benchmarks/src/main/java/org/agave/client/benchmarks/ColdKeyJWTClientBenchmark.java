@@ -0,0 +1,125 @@
+/**
+ *
+ */
+package org.agave.client.benchmarks;
+
+import java.security.KeyFactory;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.concurrent.TimeUnit;
+
+import org.agave.client.auth.JWTClient;
+import org.agave.client.auth.JWTVerificationResult;
+import org.agave.client.auth.SHA256withRSAVerifier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of accepting a gateway JWT when the tenant key cache is cold. Before
+ * each token is validated, the pooled signature engines of its tenant key
+ * are dropped and the key is parsed again from its X.509 encoding and
+ * registered in place of the old one, so every operation pays for parsing
+ * the key and initializing a fresh signature engine, as the first token of a
+ * tenant does after its key is loaded or rotated. The verified token cache
+ * is disabled so no token skips verification.
+ *
+ * Compare with {@link VerifiedCacheDisabledJWTClientBenchmark#validate}, which
+ * verifies the same tokens against a warm key.
+ *
+ * @author dooley
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-DJWT_VERIFIED_CACHE_SIZE=0")
+public class ColdKeyJWTClientBenchmark {
+
+	/**
+	 * Distinct valid tokens cycled through by each benchmark.
+	 */
+	private static final int TOKEN_COUNT = 256;
+
+	/**
+	 * Approximate size of the json payload of each token.
+	 */
+	@Param({"512", "2048", "8192"})
+	public int claimBytes;
+
+	/**
+	 * Number of tenants the tokens are spread across.
+	 */
+	@Param({"1", "8"})
+	public int tenantCount;
+
+	String[] tokens;
+	String[] tenantIds;
+	RSAPublicKey[] publicKeys;
+	byte[][] encodedKeys;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		BenchmarkTokens generator = new BenchmarkTokens(tenantCount);
+
+		publicKeys = new RSAPublicKey[tenantCount];
+		encodedKeys = new byte[tenantCount][];
+		for (int i = 0; i < tenantCount; i++) {
+			publicKeys[i] = generator.getPublicKey(i);
+			encodedKeys[i] = publicKeys[i].getEncoded();
+		}
+
+		tokens = new String[TOKEN_COUNT];
+		tenantIds = new String[TOKEN_COUNT];
+		for (int i = 0; i < TOKEN_COUNT; i++) {
+			tenantIds[i] = generator.getTenantId(i % tenantCount);
+			tokens[i] = generator.sign(i % tenantCount, "user" + i, claimBytes, 3600);
+		}
+	}
+
+	/**
+	 * Per thread position in the token list and key factory, so threads do
+	 * not contend on either.
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next;
+		KeyFactory keyFactory;
+
+		@Setup(Level.Trial)
+		public void setUp() throws Exception {
+			keyFactory = KeyFactory.getInstance("RSA");
+		}
+
+		int next() {
+			next = (next + 1) & (TOKEN_COUNT - 1);
+			return next;
+		}
+	}
+
+	@Benchmark
+	public JWTVerificationResult validate(Cursor cursor) throws Exception {
+		int i = cursor.next();
+		int tenant = i % tenantCount;
+
+		// the reloaded key equals the registered one, so its engines must be
+		// dropped explicitly for the next verification to initialize new ones
+		SHA256withRSAVerifier.invalidate(publicKeys[tenant]);
+		RSAPublicKey publicKey = (RSAPublicKey)cursor.keyFactory.generatePublic(
+				new X509EncodedKeySpec(encodedKeys[tenant]));
+		JWTClient.registerTenantPublicKey(tenantIds[i], publicKey);
+
+		return JWTClient.validate(tokens[i], tenantIds[i]);
+	}
+}
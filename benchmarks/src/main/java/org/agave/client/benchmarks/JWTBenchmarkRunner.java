@@ -0,0 +1,49 @@
+/**
+ *
+ */
+package org.agave.client.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JWT benchmarks once per thread count with the GC profiler
+ * attached, reporting ops/s alongside {@code gc.alloc.rate.norm}, the bytes
+ * allocated per operation.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar org.agave.client.benchmarks.JWTBenchmarkRunner [include regex] [threads...]
+ * </pre>
+ *
+ * By default every JWT benchmark runs with 1, 2, 4 and 8 threads.
+ *
+ * @author dooley
+ *
+ */
+public class JWTBenchmarkRunner {
+
+	private static final int[] DEFAULT_THREADS = { 1, 2, 4, 8 };
+
+	public static void main(String[] args) throws Exception {
+		String include = args.length > 0 ? args[0] : "JWTClientBenchmark";
+
+		int[] threadCounts = DEFAULT_THREADS;
+		if (args.length > 1) {
+			threadCounts = new int[args.length - 1];
+			for (int i = 1; i < args.length; i++) {
+				threadCounts[i - 1] = Integer.parseInt(args[i]);
+			}
+		}
+
+		for (int threads: threadCounts) {
+			Options options = new OptionsBuilder()
+					.include(include)
+					.threads(threads)
+					.addProfiler(GCProfiler.class)
+					.build();
+			new Runner(options).run();
+		}
+	}
+}
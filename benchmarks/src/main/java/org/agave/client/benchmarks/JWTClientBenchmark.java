@@ -0,0 +1,191 @@
+/**
+ *
+ */
+package org.agave.client.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.agave.client.auth.AuthContext;
+import org.agave.client.auth.JWTAuthenticator;
+import org.agave.client.auth.JWTClient;
+import org.agave.client.auth.JWTVerificationResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end cost of accepting and rejecting gateway JWT through
+ * {@link JWTClient}, across claim sizes and a mix of tenants. Tenant keys are
+ * generated and registered locally, so the tenant key cache is always warm;
+ * with the default settings repeat tokens are also served from the verified
+ * token cache. See {@link VerifiedCacheDisabledJWTClientBenchmark} for the
+ * same benchmarks with every token taken through signature verification, and
+ * {@link ColdKeyJWTClientBenchmark} for tokens verified against a freshly
+ * loaded tenant key.
+ *
+ * Run with {@code -t} to measure contention and {@code -prof gc} for the
+ * allocation rate per operation, or use {@link JWTBenchmarkRunner} to do both.
+ *
+ * @author dooley
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JWTClientBenchmark {
+
+	/**
+	 * Distinct valid tokens cycled through by each benchmark.
+	 */
+	private static final int TOKEN_COUNT = 256;
+
+	/**
+	 * Approximate size of the json payload of each token.
+	 */
+	@Param({"512", "2048", "8192"})
+	public int claimBytes;
+
+	/**
+	 * Number of tenants the tokens are spread across.
+	 */
+	@Param({"1", "8"})
+	public int tenantCount;
+
+	String[] tokens;
+	String[] tenantIds;
+	byte[][] tokenBytes;
+	String[][][] requests;
+	String expiredToken;
+	String malformedToken;
+	String oversizedToken;
+	JWTAuthenticator<String[][]> authenticator;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		BenchmarkTokens generator = new BenchmarkTokens(tenantCount);
+
+		tokens = new String[TOKEN_COUNT];
+		tenantIds = new String[TOKEN_COUNT];
+		tokenBytes = new byte[TOKEN_COUNT][];
+		requests = new String[TOKEN_COUNT][][];
+		for (int i = 0; i < TOKEN_COUNT; i++) {
+			int tenant = i % tenantCount;
+			tenantIds[i] = generator.getTenantId(tenant);
+			tokens[i] = generator.sign(tenant, "user" + i, claimBytes, 3600);
+			tokenBytes[i] = tokens[i].getBytes(StandardCharsets.US_ASCII);
+			requests[i] = new String[][] {
+				{ "Host", "localhost" },
+				{ "Accept", "application/json" },
+				{ "User-Agent", "benchmark" },
+				{ "X-JWT-Assertion-" + tenantIds[i].replace('.', '-').toUpperCase(), tokens[i] }
+			};
+		}
+
+		expiredToken = generator.sign(0, "expired", claimBytes, -60);
+		malformedToken = tokens[0].substring(0, tokens[0].length() / 2) + "$" + tokens[0].substring(tokens[0].length() / 2 + 1);
+		StringBuilder oversized = new StringBuilder(tokens[0]);
+		while (oversized.length() < 64 * 1024) {
+			oversized.append("AAAA");
+		}
+		oversizedToken = oversized.toString();
+
+		authenticator = new JWTAuthenticator<String[][]>(new JWTAuthenticator.HeaderAccessor<String[][]>() {
+			@Override
+			public int getHeaderCount(String[][] request) {
+				return request.length;
+			}
+
+			@Override
+			public CharSequence getHeaderName(String[][] request, int index) {
+				return request[index][0];
+			}
+
+			@Override
+			public String getHeaderValue(String[][] request, int index) {
+				return request[index][1];
+			}
+		}, Collections.<String>emptyList());
+	}
+
+	/**
+	 * Per thread position in the token list, so threads do not contend on
+	 * a shared counter.
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next;
+
+		int next() {
+			next = (next + 1) & (TOKEN_COUNT - 1);
+			return next;
+		}
+	}
+
+	@Benchmark
+	public JWTVerificationResult validate(Cursor cursor) {
+		int i = cursor.next();
+		return JWTClient.validate(tokens[i], tenantIds[i]);
+	}
+
+	@Benchmark
+	public boolean parse(Cursor cursor) {
+		int i = cursor.next();
+		try {
+			return JWTClient.parse(tokens[i], tenantIds[i]);
+		}
+		finally {
+			AuthContext.clear();
+		}
+	}
+
+	@Benchmark
+	public boolean parseBytes(Cursor cursor) {
+		int i = cursor.next();
+		try {
+			return JWTClient.parse(ByteBuffer.wrap(tokenBytes[i]), tenantIds[i]);
+		}
+		finally {
+			AuthContext.clear();
+		}
+	}
+
+	@Benchmark
+	public JWTVerificationResult authenticate(Cursor cursor) {
+		try {
+			return authenticator.authenticate(requests[cursor.next()]);
+		}
+		finally {
+			AuthContext.clear();
+		}
+	}
+
+	@Benchmark
+	public JWTVerificationResult rejectExpired() {
+		return JWTClient.validate(expiredToken, tenantIds[0]);
+	}
+
+	@Benchmark
+	public JWTVerificationResult rejectMalformed() {
+		return JWTClient.validate(malformedToken, tenantIds[0]);
+	}
+
+	@Benchmark
+	public JWTVerificationResult rejectOversized() {
+		return JWTClient.validate(oversizedToken, tenantIds[0]);
+	}
+}
@@ -0,0 +1,79 @@
+/**
+ *
+ */
+package org.agave.client.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.util.concurrent.TimeUnit;
+
+import org.agave.client.auth.SHA256withRSAVerifier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares verifying a SHA256withRSA signature with a freshly looked up and
+ * initialized {@link Signature} per call against the pooled engines used by
+ * {@link SHA256withRSAVerifier}.
+ *
+ * @author dooley
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SignatureVerifierBenchmark {
+
+	private RSAPublicKey publicKey;
+	private byte[] signedContent;
+	private byte[] signature;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		KeyPair keyPair = generator.generateKeyPair();
+		publicKey = (RSAPublicKey)keyPair.getPublic();
+
+		// roughly the size of a gateway jwt signing input
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < 1500) {
+			sb.append("eyJodHRwOi8vd3NvMi5vcmcvY2xhaW1zL2VuZHVzZXIiOiJ0ZXN0dXNlciJ9");
+		}
+		signedContent = sb.toString().getBytes(StandardCharsets.US_ASCII);
+
+		Signature signer = Signature.getInstance("SHA256withRSA");
+		signer.initSign(keyPair.getPrivate());
+		signer.update(signedContent);
+		signature = signer.sign();
+	}
+
+	@Benchmark
+	public boolean perCallSignature() throws Exception {
+		Signature verifier = Signature.getInstance("SHA256withRSA");
+		verifier.initVerify(publicKey);
+		verifier.update(signedContent);
+		return verifier.verify(signature);
+	}
+
+	@Benchmark
+	public boolean pooledSignature() throws Exception {
+		return SHA256withRSAVerifier.verify(publicKey, signedContent, 0, signedContent.length,
+				signature, 0, signature.length);
+	}
+}
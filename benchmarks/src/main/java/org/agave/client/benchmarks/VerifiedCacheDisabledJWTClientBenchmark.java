@@ -0,0 +1,18 @@
+/**
+ *
+ */
+package org.agave.client.benchmarks;
+
+import org.openjdk.jmh.annotations.Fork;
+
+/**
+ * Runs the {@link JWTClientBenchmark} benchmarks with the verified token
+ * cache disabled, so every accepted token is parsed and its signature
+ * checked against the tenant public key.
+ *
+ * @author dooley
+ *
+ */
+@Fork(value = 1, jvmArgsAppend = "-DJWT_VERIFIED_CACHE_SIZE=0")
+public class VerifiedCacheDisabledJWTClientBenchmark extends JWTClientBenchmark {
+}
@@ -30,12 +30,25 @@ public class CustomGrantTypeOAuth20Service extends OAuth20Service {
 	private final String TOKEN_USERNAME = "token_username";
 	private final String ADMIN_PASSWORD_GRANT_TYPE = "admin_password";
 	
+	/**
+	 * Basic auth header for the client, built once since the client key and
+	 * secret never change for the life of the service. Null if either is missing.
+	 */
+	private final String basicAuthHeader;
+	
 	/**
 	 * @param api
 	 * @param config
 	 */
 	public CustomGrantTypeOAuth20Service(DefaultApi20 api, OAuthConfig config) {
 		super(api, config);
+		
+		if (config.getApiKey() != null && config.getApiSecret() != null) {
+			this.basicAuthHeader = OAuthConstants.BASIC + ' ' + Base64Encoder.getInstance()
+					.encode(String.format("%s:%s", config.getApiKey(), config.getApiSecret()).getBytes(Charset.forName("UTF-8")));
+		} else {
+			this.basicAuthHeader = null;
+		}
 	}
 	
 	public final OAuth2AccessToken getAccessTokenAdminPasswordGrant(String serviceUname, String servicePassword, String tokenUsername)
@@ -79,14 +92,7 @@ public class CustomGrantTypeOAuth20Service extends OAuth20Service {
 
         request.addParameter(OAuthConstants.GRANT_TYPE, ADMIN_PASSWORD_GRANT_TYPE);
 
-        final String apiKey = config.getApiKey();
-        final String apiSecret = config.getApiSecret();
-        if (apiKey != null && apiSecret != null) {
-            request.addHeader(OAuthConstants.HEADER,
-                    OAuthConstants.BASIC + ' '
-                    + Base64Encoder.getInstance()
-                    .encode(String.format("%s:%s", apiKey, apiSecret).getBytes(Charset.forName("UTF-8"))));
-        }
+        addBasicAuthHeader(request);
 
         return request;
     }
@@ -98,21 +104,47 @@ public class CustomGrantTypeOAuth20Service extends OAuth20Service {
      */
     public void revokeAccessToken(String accessToken) {
         final OAuthRequest request = new OAuthRequest(Verb.POST, ((AgaveApi)super.getApi()).getTokenRevocationEndpoint());
-        final OAuthConfig config = getConfig();
         request.addParameter(OAuthConstants.TOKEN, accessToken);
         
-        final String apiKey = config.getApiKey();
-        final String apiSecret = config.getApiSecret();
-        if (apiKey != null && apiSecret != null) {
-            request.addHeader(OAuthConstants.HEADER,
-                    OAuthConstants.BASIC + ' '
-                    + Base64Encoder.getInstance()
-                    .encode(String.format("%s:%s", apiKey, apiSecret).getBytes(Charset.forName("UTF-8"))));
-        }
+        addBasicAuthHeader(request);
 
         sendTokenRevocationRequestAsync(request);
     }
     
+    /**
+     * Same as the standard password grant request, but reuses the
+     * precomputed Basic auth header.
+     */
+    @Override
+    protected OAuthRequest createAccessTokenPasswordGrantRequest(String username, String password) {
+        final OAuthRequest request = new OAuthRequest(getApi().getAccessTokenVerb(), getApi().getAccessTokenEndpoint());
+        final OAuthConfig config = getConfig();
+        request.addParameter(OAuthConstants.USERNAME, username);
+        request.addParameter(OAuthConstants.PASSWORD, password);
+
+        final String scope = config.getScope();
+        if (scope != null) {
+            request.addParameter(OAuthConstants.SCOPE, scope);
+        }
+
+        request.addParameter(OAuthConstants.GRANT_TYPE, OAuthConstants.PASSWORD);
+
+        addBasicAuthHeader(request);
+
+        return request;
+    }
+    
+    /**
+     * Adds the client's Basic auth header to the request, if the client has
+     * both a key and a secret.
+     * @param request
+     */
+    protected void addBasicAuthHeader(OAuthRequest request) {
+        if (basicAuthHeader != null) {
+            request.addHeader(OAuthConstants.HEADER, basicAuthHeader);
+        }
+    }
+    
   //protected to facilitate mocking
     protected Future<String> sendTokenRevocationRequestAsync(OAuthRequest request) {
         return sendTokenRevocationRequestAsync(request, null);
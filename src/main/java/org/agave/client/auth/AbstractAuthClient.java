@@ -0,0 +1,509 @@
+/**
+ *
+ */
+package org.agave.client.auth;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+import javax.cache.Cache;
+import javax.cache.CacheException;
+
+import org.agave.client.ApiException;
+import org.agave.client.cache.LocalAgaveAuthConfig;
+import org.agave.client.cache.MultitenantCacheManager;
+import org.agave.client.common.AuthSettings;
+import org.agave.client.common.Futures;
+import org.agave.client.common.SingleFlight;
+import org.agave.client.model.Client;
+import org.agave.client.model.Tenant;
+
+import com.github.scribejava.core.model.OAuth2AccessToken;
+import com.github.scribejava.core.oauth.CustomGrantTypeOAuth20Service;
+
+/**
+ * Token lifecycle shared by the auth clients, which obtain a token for each
+ * user through a client application registered in the user's name and
+ * cache it per tenant and client application id. Concurrent requests for a
+ * user's token share a single exchange with the auth server, cached tokens
+ * are refreshed in the background while in use, and every request to the
+ * token endpoint respects {@link AuthSettings#OAUTH_TOKEN_RATE_LIMIT}.
+ *
+ * Subclasses supply how a user's client is registered and how its first
+ * token is issued.
+ *
+ * @author dooley
+ *
+ */
+abstract class AbstractAuthClient {
+
+	/**
+	 * Token acquisitions and refreshes in progress, keyed by user token key
+	 */
+	private static final SingleFlight<String, LocalAgaveAuthConfig> tokenRequests =
+			new SingleFlight<String, LocalAgaveAuthConfig>();
+
+	private Tenant tenant;
+	private String clientApplicationId;
+	private MultitenantCacheManager cacheManager;
+	private Cache<String, LocalAgaveAuthConfig> cache;
+
+	AbstractAuthClient(Tenant tenant, String clientApplicationId) {
+		this.tenant = tenant;
+		this.clientApplicationId = clientApplicationId;
+	}
+
+	/**
+	 * Registers a new client application for the user in this namespace.
+	 *
+	 * @param username the user the client acts for
+	 * @param password the user's password, or null if the client does not use it
+	 * @return the registered client, including its key and secret
+	 * @throws IOException if the client could not be created
+	 */
+	abstract Client createClient(String username, byte[] password)
+	throws IOException;
+
+	/**
+	 * Requests a new token for the user from the user's client.
+	 *
+	 * @param client the client the token is issued to
+	 * @param username the user the token is for
+	 * @param password the user's password, or null if the client does not use it
+	 * @return valid {@link OAuth2AccessToken} for the {@code username}
+	 */
+	abstract OAuth2AccessToken issueToken(Client client, String username, byte[] password)
+	throws ApiException, IOException, InterruptedException, ExecutionException;
+
+	/**
+	 * Renews a cached token in the background. By default this only uses
+	 * the refresh token, since the user's password is not kept, leaving the
+	 * token to be renewed by the first request after it expires if the
+	 * refresh token is no longer accepted. The caller holds a token permit.
+	 *
+	 * @param localAuthConfig the cached token
+	 * @param username the user the token is for
+	 * @return the renewed token
+	 */
+	OAuth2AccessToken renewCachedToken(LocalAgaveAuthConfig localAuthConfig, String username)
+	throws ApiException, IOException, InterruptedException, ExecutionException
+	{
+		return _refreshToken(localAuthConfig);
+	}
+
+	/**
+	 * Returns the user's token, fetching or renewing it if need be.
+	 */
+	LocalAgaveAuthConfig getUserToken(final String username, final byte[] password)
+	throws ApiException, IOException, InterruptedException, ExecutionException
+	{
+		// a valid token with its refresh scheduled needs no coordination
+		LocalAgaveAuthConfig cached = getCachedToken(username);
+		if (cached != null) {
+			return cached;
+		}
+
+		// only one thread per user talks to the auth server. the rest share its result.
+		return coalesce(username, new Callable<LocalAgaveAuthConfig>() {
+			@Override
+			public LocalAgaveAuthConfig call() throws Exception {
+				return fetchToken(username, password);
+			}
+		});
+	}
+
+	/**
+	 * Returns the user's token without blocking the calling thread.
+	 * Registering the user's client and requesting its token run as separate
+	 * stages on the executor, so no thread waits on another while the calls
+	 * to the auth server are in flight. Concurrent calls for the same user,
+	 * synchronous or not, share a single exchange with the auth server.
+	 *
+	 * Each caller receives its own future. Cancelling it only stops that
+	 * caller waiting; an exchange already under way still completes and
+	 * caches its token for the next request.
+	 */
+	CompletableFuture<LocalAgaveAuthConfig> getUserTokenAsync(final String username, final byte[] password, final Executor executor)
+	{
+		LocalAgaveAuthConfig cached = getCachedToken(username);
+		if (cached != null) {
+			return CompletableFuture.completedFuture(cached);
+		}
+
+		return Futures.detached(tokenRequests.compose(getTokenKey(username), new Callable<CompletableFuture<LocalAgaveAuthConfig>>() {
+			@Override
+			public CompletableFuture<LocalAgaveAuthConfig> call() {
+				return fetchTokenAsync(username, password, executor);
+			}
+		}));
+	}
+
+	/**
+	 * @return the user's cached token if it is valid and its refresh is
+	 * scheduled, marking it in use, otherwise null
+	 */
+	private LocalAgaveAuthConfig getCachedToken(String username)
+	{
+		LocalAgaveAuthConfig cached = getCache().get(username);
+		if (cached != null && !TokenRefreshScheduler.isExpired(cached)
+				&& TokenRefreshScheduler.getInstance().touch(getTokenKey(username))) {
+			return cached;
+		}
+		return null;
+	}
+
+	/**
+	 * Creates or refreshes the user's token. Callers coalesce on the user's
+	 * token key, so this runs for at most one thread per user at a time.
+	 */
+	private LocalAgaveAuthConfig fetchToken(String username, byte[] password)
+	throws ApiException, IOException, InterruptedException, ExecutionException
+	{
+		LocalAgaveAuthConfig localAuthConfig = getCache().get(username);
+		if (localAuthConfig == null) {
+			Client client = createClient(username, password);
+
+			// fetch a new token with the generate client;
+			OAuthServiceRegistry.acquireTokenPermit();
+			return storeIssuedToken(client, username, issueToken(client, username, password));
+		}
+
+		// we already have a valid token and client for the user in the current context,
+		// check for validity of the current token and use if valid
+		if (!TokenRefreshScheduler.isExpired(localAuthConfig)) {
+			return ensureRefreshScheduled(localAuthConfig, username);
+		}
+
+		// if expired, walk a refresh flow. background refresh normally
+		// renews the token before this happens.
+		OAuth2AccessToken token = null;
+		OAuthServiceRegistry.acquireTokenPermit();
+		try {
+			token = _refreshToken(localAuthConfig);
+		}
+		catch (Exception e) {
+			// refresh failed, try to pull a fresh one.
+			OAuthServiceRegistry.acquireTokenPermit();
+			token = issueToken(getClient(localAuthConfig), username, password);
+		}
+
+		return storeRenewedToken(localAuthConfig, username, token);
+	}
+
+	/**
+	 * Asynchronous form of {@link #fetchToken(String, byte[])}, running each call
+	 * to the auth server as its own stage on the executor. A rate limited
+	 * token request waits for its turn on a timer rather than on an
+	 * executor thread.
+	 */
+	private CompletableFuture<LocalAgaveAuthConfig> fetchTokenAsync(final String username, final byte[] password, final Executor executor)
+	{
+		return Futures.callAsync(new Callable<LocalAgaveAuthConfig>() {
+			@Override
+			public LocalAgaveAuthConfig call() throws Exception {
+				return getCache().get(username);
+			}
+		}, executor).thenCompose(new Function<LocalAgaveAuthConfig, CompletableFuture<LocalAgaveAuthConfig>>() {
+			@Override
+			public CompletableFuture<LocalAgaveAuthConfig> apply(final LocalAgaveAuthConfig localAuthConfig) {
+				if (localAuthConfig == null) {
+					return Futures.callAsync(new Callable<Client>() {
+						@Override
+						public Client call() throws Exception {
+							return createClient(username, password);
+						}
+					}, executor).thenCompose(new Function<Client, CompletableFuture<LocalAgaveAuthConfig>>() {
+						@Override
+						public CompletableFuture<LocalAgaveAuthConfig> apply(final Client client) {
+							return afterTokenPermit(new Callable<LocalAgaveAuthConfig>() {
+								@Override
+								public LocalAgaveAuthConfig call() throws Exception {
+									return storeIssuedToken(client, username, issueToken(client, username, password));
+								}
+							}, executor);
+						}
+					});
+				}
+
+				if (!TokenRefreshScheduler.isExpired(localAuthConfig)) {
+					return Futures.callAsync(new Callable<LocalAgaveAuthConfig>() {
+						@Override
+						public LocalAgaveAuthConfig call() throws Exception {
+							return ensureRefreshScheduled(localAuthConfig, username);
+						}
+					}, executor);
+				}
+
+				return renewTokenAsync(localAuthConfig, username, password, executor);
+			}
+		});
+	}
+
+	/**
+	 * Asynchronously renews an expired token, falling back to a new token
+	 * from the user's client if the refresh fails.
+	 */
+	private CompletableFuture<LocalAgaveAuthConfig> renewTokenAsync(final LocalAgaveAuthConfig localAuthConfig,
+			final String username, final byte[] password, final Executor executor)
+	{
+		CompletableFuture<OAuth2AccessToken> refreshed = afterTokenPermit(new Callable<OAuth2AccessToken>() {
+			@Override
+			public OAuth2AccessToken call() throws Exception {
+				return _refreshToken(localAuthConfig);
+			}
+		}, executor);
+
+		return Futures.exceptionallyCompose(refreshed, new Function<Throwable, CompletableFuture<OAuth2AccessToken>>() {
+			@Override
+			public CompletableFuture<OAuth2AccessToken> apply(Throwable error) {
+				// refresh failed, try to pull a fresh one.
+				return afterTokenPermit(new Callable<OAuth2AccessToken>() {
+					@Override
+					public OAuth2AccessToken call() throws Exception {
+						return issueToken(getClient(localAuthConfig), username, password);
+					}
+				}, executor);
+			}
+		}).thenApply(new Function<OAuth2AccessToken, LocalAgaveAuthConfig>() {
+			@Override
+			public LocalAgaveAuthConfig apply(OAuth2AccessToken token) {
+				return storeRenewedToken(localAuthConfig, username, token);
+			}
+		});
+	}
+
+	/**
+	 * Runs the request to the token endpoint on the executor once it is the
+	 * caller's turn under {@link AuthSettings#OAUTH_TOKEN_RATE_LIMIT}.
+	 */
+	private static <T> CompletableFuture<T> afterTokenPermit(final Callable<T> request, final Executor executor)
+	{
+		return OAuthServiceRegistry.acquireTokenPermitAsync().thenCompose(new Function<Void, CompletableFuture<T>>() {
+			@Override
+			public CompletableFuture<T> apply(Void permit) {
+				return Futures.callAsync(request, executor);
+			}
+		});
+	}
+
+	/**
+	 * Caches the user's first token, issued to the newly registered client,
+	 * and schedules its refresh.
+	 */
+	private LocalAgaveAuthConfig storeIssuedToken(Client client, String username, OAuth2AccessToken token)
+	{
+		// add the client, tenant, user, and token info to a local auth config
+		LocalAgaveAuthConfig localAuthConfig = new LocalAgaveAuthConfig(getTenant(), client, username, token);
+
+		// cache for later reuse
+		getCache().put(username, localAuthConfig);
+		scheduleRefresh(username, localAuthConfig);
+
+		return localAuthConfig;
+	}
+
+	/**
+	 * Caches the token renewing the user's expired one and schedules its
+	 * refresh.
+	 */
+	private LocalAgaveAuthConfig storeRenewedToken(LocalAgaveAuthConfig localAuthConfig, String username, OAuth2AccessToken token)
+	{
+		updateToken(localAuthConfig, token);
+
+		getCache().put(username, localAuthConfig);
+		scheduleRefresh(username, localAuthConfig);
+
+		return localAuthConfig;
+	}
+
+	/**
+	 * Makes sure a valid cached token has its refresh scheduled.
+	 */
+	private LocalAgaveAuthConfig ensureRefreshScheduled(LocalAgaveAuthConfig localAuthConfig, String username)
+	{
+		// picked up from a cache populated elsewhere, such as before a restart,
+		// or its refresh was dropped while it sat unused. this request uses it.
+		if (!TokenRefreshScheduler.getInstance().isScheduled(getTokenKey(username))) {
+			scheduleRefresh(username, localAuthConfig);
+			TokenRefreshScheduler.getInstance().touch(getTokenKey(username));
+		}
+
+		return localAuthConfig;
+	}
+
+	/**
+	 * @return the client the cached token was issued to
+	 */
+	static Client getClient(LocalAgaveAuthConfig localAuthConfig)
+	{
+		Client client = new Client();
+		client.setKey(localAuthConfig.getApiKey());
+		client.setSecret(localAuthConfig.getApiSecret());
+		return client;
+	}
+
+	/**
+	 * Makes the call to get a new auth token using the existing token in the
+	 * {@link LocalAgaveAuthConfig}.
+	 *
+	 * @param localAuthConfig the current {@link LocalAgaveAuthConfig} for
+	 * the user containing client info and refresh token to carry out this action.
+	 * @return valid {@link OAuth2AccessToken} for the {@code LocalAgaveAuthConfig#username}
+	 * @throws ApiException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	protected OAuth2AccessToken _refreshToken(LocalAgaveAuthConfig localAuthConfig)
+	throws ApiException, IOException, InterruptedException, ExecutionException
+	{
+		final CustomGrantTypeOAuth20Service service = OAuthServiceRegistry.get(
+				getTenant().getBaseUrl(), localAuthConfig.getApiKey(), localAuthConfig.getApiSecret());
+
+		return service.refreshAccessToken(localAuthConfig.getRefreshToken());
+	}
+
+	/**
+	 * Refreshes the user's cached token in the background before it expires.
+	 *
+	 * @param username the user whose token to refresh
+	 * @param localAuthConfig the cached token
+	 */
+	protected void scheduleRefresh(final String username, LocalAgaveAuthConfig localAuthConfig)
+	{
+		TokenRefreshScheduler.getInstance().schedule(getTokenKey(username), localAuthConfig, new TokenRefreshScheduler.Refresher() {
+			@Override
+			public boolean isBusy() {
+				return tokenRequests.isInFlight(getTokenKey(username))
+						|| OAuthServiceRegistry.isTokenEndpointSaturated();
+			}
+
+			@Override
+			public LocalAgaveAuthConfig refresh() throws Exception {
+				return coalesce(username, new Callable<LocalAgaveAuthConfig>() {
+					@Override
+					public LocalAgaveAuthConfig call() throws Exception {
+						LocalAgaveAuthConfig current = getCache().get(username);
+						if (current == null) {
+							return null;
+						}
+
+						OAuthServiceRegistry.acquireTokenPermit();
+						updateToken(current, renewCachedToken(current, username));
+
+						getCache().put(username, current);
+						return current;
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Stops refreshing the user's token, as when it is revoked.
+	 */
+	void cancelRefresh(String username)
+	{
+		TokenRefreshScheduler.getInstance().cancel(getTokenKey(username));
+	}
+
+	/**
+	 * Runs the task unless an acquisition or refresh of the user's token is
+	 * already in progress, in which case waits for and returns its result.
+	 */
+	private LocalAgaveAuthConfig coalesce(String username, Callable<LocalAgaveAuthConfig> task)
+	throws ApiException, IOException, InterruptedException, ExecutionException
+	{
+		try {
+			return tokenRequests.execute(getTokenKey(username), task,
+					AuthSettings.TOKEN_REQUEST_TIMEOUT, TimeUnit.MILLISECONDS);
+		}
+		catch (ApiException | IOException | InterruptedException | ExecutionException | RuntimeException e) {
+			throw e;
+		}
+		catch (TimeoutException e) {
+			throw new IOException("Timed out after " + AuthSettings.TOKEN_REQUEST_TIMEOUT +
+					"ms waiting on another request for the token of user " + username +
+					" in tenant " + getTenant().getCode(), e);
+		}
+		catch (Exception e) {
+			throw new ExecutionException(e);
+		}
+	}
+
+	/**
+	 * @return the key of the user's token, unique across clients and tenants.
+	 * Acquisitions and refreshes of the token are coalesced on this key.
+	 */
+	private String getTokenKey(String username) {
+		return getClass().getName() + ":" + getCacheManager().getCacheName() + "/" + username;
+	}
+
+	/**
+	 * Copies a newly issued token into the cached config, computing the
+	 * wall clock expiration time.
+	 */
+	private static void updateToken(LocalAgaveAuthConfig localAuthConfig, OAuth2AccessToken token) {
+		localAuthConfig.setAccessToken(token.getAccessToken());
+		localAuthConfig.setRefreshToken(token.getRefreshToken());
+		localAuthConfig.setExpiresIn(token.getExpiresIn());
+		localAuthConfig.setExpiresAt(LocalDateTime.now().plus(token.getExpiresIn().longValue(), ChronoUnit.SECONDS));
+	}
+
+	public MultitenantCacheManager getCacheManager() {
+		if (this.cacheManager == null) {
+			this.cacheManager = new MultitenantCacheManager(getTenant(), getClientApplicationId());
+		}
+
+		return this.cacheManager;
+	}
+
+	/**
+	 * @return the cache for the
+	 */
+	public Cache<String, LocalAgaveAuthConfig> getCache()
+	throws CacheException
+	{
+		if (this.cache == null) {
+			this.cache = getCacheManager().getUserTokenCacheForClientApplication();
+		}
+
+		return this.cache;
+	}
+
+	/**
+	 * @return the tenant
+	 */
+	public Tenant getTenant() {
+		return tenant;
+	}
+
+	/**
+	 * @param tenant the tenant to set
+	 */
+	public void setTenant(Tenant tenant) {
+		this.tenant = tenant;
+	}
+
+	/**
+	 * @return the clientApplicationId
+	 */
+	public String getClientApplicationId() {
+		return clientApplicationId;
+	}
+
+	/**
+	 * @param clientApplicationId the clientApplicationId to set
+	 */
+	public void setClientApplicationId(String clientApplicationId) {
+		this.clientApplicationId = clientApplicationId;
+	}
+}
@@ -0,0 +1,395 @@
+/**
+ *
+ */
+package org.agave.client.auth;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.minidev.json.JSONObject;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.nimbusds.jwt.ReadOnlyJWTClaimsSet;
+
+/**
+ * Immutable, typed view of the claims in a verified Agave JWT. The claim
+ * values are only read from the underlying claims set the first time one of
+ * the typed getters is called. Derived values, such as the normalized end
+ * user and tenant, are computed once and memoized, so instances can be
+ * shared by every request carrying the same token.
+ *
+ * @author dooley
+ *
+ */
+public final class AgaveClaims {
+
+	public static final String END_USER_CLAIM = "http://wso2.org/claims/enduser";
+	public static final String END_USER_TENANT_ID_CLAIM = "http://wso2.org/claims/enduserTenantId";
+	public static final String SUBSCRIBER_CLAIM = "http://wso2.org/claims/subscriber";
+	public static final String APPLICATION_ID_CLAIM = "http://wso2.org/claims/applicationid";
+	public static final String ROLE_CLAIM = "http://wso2.org/claims/role";
+	public static final String EXPIRATION_CLAIM = "exp";
+
+	/**
+	 * Claims added by this library alongside the ones in the token.
+	 */
+	public static final String TENANT_ID_CLAIM = "tenantId";
+	public static final String RAW_TENANT_ID_CLAIM = "rawTenantId";
+	public static final String BEARER_TOKEN_CLAIM = "bearerToken";
+
+	/**
+	 * Normalized form of every tenant id seen so far. There are only a
+	 * handful of tenants, so this is capped only to guard against junk ids.
+	 */
+	private static final int MAX_NORMALIZED_TENANT_IDS = 1024;
+	private static final ConcurrentHashMap<String, String> normalizedTenantIds = new ConcurrentHashMap<String, String>();
+	
+	private final ReadOnlyJWTClaimsSet claimsSet;
+	private final JSONObject json;
+	private final String rawTenantId;
+
+	private volatile Resolved resolved;
+
+	private AgaveClaims(ReadOnlyJWTClaimsSet claimsSet, JSONObject json, String rawTenantId) {
+		this.claimsSet = claimsSet;
+		this.json = json;
+		this.rawTenantId = rawTenantId;
+	}
+
+	/**
+	 * Wraps the claims of a verified token received for the given tenant.
+	 *
+	 * @param claimsSet the verified claims
+	 * @param rawTenantId the tenant id as received, before normalization
+	 * @return the typed claims
+	 */
+	public static AgaveClaims fromClaimsSet(ReadOnlyJWTClaimsSet claimsSet, String rawTenantId) {
+		return new AgaveClaims(claimsSet, null, rawTenantId);
+	}
+
+	/**
+	 * Wraps a copy of the claims in a {@link JSONObject}, as produced by
+	 * {@link #toJSONObject()}.
+	 *
+	 * @param json the claims
+	 * @return the typed claims
+	 */
+	public static AgaveClaims fromJSONObject(JSONObject json) {
+		JSONObject copy = new JSONObject();
+		copy.putAll(json);
+		return new AgaveClaims(null, copy, (String)copy.get(RAW_TENANT_ID_CLAIM));
+	}
+
+	/**
+	 * Normalizes a tenant id as sent by the API Manager to its canonical,
+	 * lowercase, dot separated form.
+	 *
+	 * @param tenantId the tenant id to normalize
+	 * @return the normalized tenant id
+	 */
+	public static String normalizeTenantId(String tenantId) {
+		if (tenantId == null) return null;
+		
+		String normalized = normalizedTenantIds.get(tenantId);
+		if (normalized == null) {
+			normalized = StringUtils.lowerCase(tenantId);
+			normalized = StringUtils.replaceChars(normalized, '_', '.');
+			normalized = StringUtils.replaceChars(normalized, '-', '.');
+			if (normalizedTenantIds.size() < MAX_NORMALIZED_TENANT_IDS) {
+				normalizedTenantIds.putIfAbsent(tenantId, normalized);
+			}
+		}
+		return normalized;
+	}
+
+	/**
+	 * Reads a single claim. Library claims take precedence over claims in
+	 * the token.
+	 *
+	 * @param name the claim name
+	 * @return the claim value or null if not present
+	 */
+	public Object getClaim(String name) {
+		if (json != null) {
+			return json.get(name);
+		}
+		else if (RAW_TENANT_ID_CLAIM.equals(name)) {
+			return rawTenantId;
+		}
+		else if (TENANT_ID_CLAIM.equals(name)) {
+			return rawTenantId == null ? null : resolve().tenantId;
+		}
+		else {
+			return claimsSet.getClaim(name);
+		}
+	}
+
+	private boolean hasClaim(String name) {
+		if (json != null) {
+			return json.containsKey(name);
+		} else if (TENANT_ID_CLAIM.equals(name)) {
+			return rawTenantId != null;
+		} else {
+			return getClaim(name) != null;
+		}
+	}
+
+	private String getStringClaim(String name) {
+		Object value = getClaim(name);
+		return value == null ? null : value.toString();
+	}
+
+	/**
+	 * @return the end user with any tenant qualifier or domain prefix removed
+	 */
+	public String getEndUser() {
+		return resolve().endUser;
+	}
+
+	/**
+	 * @return the normalized tenant id the token was issued for
+	 */
+	public String getTenant() {
+		return resolve().tenant;
+	}
+
+	/**
+	 * @return the normalized tenant named by the domain of the subscriber or
+	 * end user claim of the token itself, regardless of the tenant it was
+	 * received for, or null if neither names a tenant
+	 */
+	public String getClaimedTenant() {
+		return resolve().claimedTenant;
+	}
+
+	/**
+	 * @return the tenant id as received, before normalization
+	 */
+	public String getRawTenantId() {
+		return (String)getClaim(RAW_TENANT_ID_CLAIM);
+	}
+
+	/**
+	 * @return the subscriber of the client application which requested the token
+	 */
+	public String getSubscriber() {
+		return resolve().subscriber;
+	}
+
+	/**
+	 * @return the id of the client application which requested the token
+	 */
+	public String getApplicationId() {
+		return resolve().applicationId;
+	}
+
+	/**
+	 * @return the roles of the end user, in token order. Never null.
+	 */
+	public List<String> getRoles() {
+		return resolve().roles;
+	}
+
+	/**
+	 * @return the roles of the end user compiled for constant time checks
+	 */
+	public RoleIndex getRoleIndex() {
+		return resolve().roleIndex;
+	}
+
+	/**
+	 * @return true if the end user is a services or super admin of the tenant
+	 */
+	public boolean isTenantAdmin() {
+		return getRoleIndex().isTenantAdmin();
+	}
+
+	/**
+	 * @return true if the end user is a super admin of the tenant
+	 */
+	public boolean isSuperAdmin() {
+		return getRoleIndex().isSuperAdmin();
+	}
+
+	/**
+	 * @param role the role, with or without its domain prefix
+	 * @return true if the end user holds the role
+	 */
+	public boolean hasRole(String role) {
+		return getRoleIndex().hasRole(role);
+	}
+
+	/**
+	 * @return the expiration time of the token or null if not present
+	 */
+	public Date getExpirationTime() {
+		return resolve().expirationTime;
+	}
+
+	/**
+	 * @return the bearer token associated with the request, if any
+	 */
+	public String getBearerToken() {
+		return getStringClaim(BEARER_TOKEN_CLAIM);
+	}
+
+	/**
+	 * @param tenantId the tenant to assign
+	 * @return a copy of these claims with the tenant and subscriber replaced
+	 */
+	public AgaveClaims withTenant(String tenantId) {
+		JSONObject copy = toJSONObject();
+		copy.put(TENANT_ID_CLAIM, tenantId);
+		copy.put(SUBSCRIBER_CLAIM, tenantId);
+		return new AgaveClaims(null, copy, rawTenantId);
+	}
+
+	/**
+	 * @param username the end user to assign
+	 * @return a copy of these claims with the end user replaced
+	 */
+	public AgaveClaims withEndUser(String username) {
+		JSONObject copy = toJSONObject();
+		copy.put(END_USER_CLAIM, username);
+		return new AgaveClaims(null, copy, rawTenantId);
+	}
+
+	/**
+	 * @param bearerToken the bearer token to associate
+	 * @return a copy of these claims with the bearer token replaced
+	 */
+	public AgaveClaims withBearerToken(String bearerToken) {
+		JSONObject copy = toJSONObject();
+		copy.put(BEARER_TOKEN_CLAIM, bearerToken);
+		return new AgaveClaims(null, copy, rawTenantId);
+	}
+
+	/**
+	 * Materializes all claims, including the library's tenant claims, into
+	 * a new {@link JSONObject}. Changes to the returned object are not
+	 * reflected in these claims.
+	 *
+	 * @return a new JSON object holding every claim
+	 */
+	public JSONObject toJSONObject() {
+		JSONObject copy = new JSONObject();
+		if (json != null) {
+			copy.putAll(json);
+		} else {
+			copy.putAll(claimsSet.toJSONObject());
+			if (rawTenantId != null) {
+				copy.put(RAW_TENANT_ID_CLAIM, rawTenantId);
+				copy.put(TENANT_ID_CLAIM, resolve().tenantId);
+			}
+		}
+		return copy;
+	}
+
+	private Resolved resolve() {
+		Resolved r = resolved;
+		if (r == null) {
+			// racing threads compute identical values, so no locking needed
+			r = new Resolved(this);
+			resolved = r;
+		}
+		return r;
+	}
+
+	/**
+	 * The typed and derived claim values, computed together on first access.
+	 */
+	private static final class Resolved {
+		final String tenantId;
+		final String tenant;
+		final String claimedTenant;
+		final String endUser;
+		final String subscriber;
+		final String applicationId;
+		final List<String> roles;
+		final RoleIndex roleIndex;
+		final Date expirationTime;
+
+		Resolved(AgaveClaims claims) {
+			this.tenantId = claims.json != null ?
+					(String)claims.json.get(TENANT_ID_CLAIM) : normalizeTenantId(claims.rawTenantId);
+			this.subscriber = claims.getStringClaim(SUBSCRIBER_CLAIM);
+			this.applicationId = claims.getStringClaim(APPLICATION_ID_CLAIM);
+			this.tenant = resolveTenant(claims, tenantId, subscriber);
+			this.claimedTenant = resolveClaimedTenant(subscriber, claims.getStringClaim(END_USER_CLAIM));
+			this.endUser = resolveEndUser(claims.getStringClaim(END_USER_CLAIM), tenant);
+			this.roles = resolveRoles(claims.getClaim(ROLE_CLAIM));
+			this.roleIndex = RoleIndex.compile(roles, claims.getRawTenantId());
+			this.expirationTime = resolveExpirationTime(claims);
+		}
+
+		private static String resolveTenant(AgaveClaims claims, String tenantId, String subscriber) {
+			if (claims.hasClaim(TENANT_ID_CLAIM)) {
+				return tenantId;
+			}
+			else if (StringUtils.contains(subscriber, "@")) {
+				return subscriber.substring(subscriber.lastIndexOf("@") + 1);
+			}
+			else {
+				return claims.getStringClaim(END_USER_TENANT_ID_CLAIM);
+			}
+		}
+
+		private static String resolveClaimedTenant(String subscriber, String endUser) {
+			String domain = StringUtils.contains(subscriber, "@") ?
+					StringUtils.substringAfterLast(subscriber, "@") : StringUtils.substringAfterLast(endUser, "@");
+			if (StringUtils.isEmpty(domain) || "carbon.super".equals(domain)) {
+				return null;
+			}
+			return normalizeTenantId(domain);
+		}
+
+		private static String resolveEndUser(String endUser, String tenant) {
+			if (endUser == null) return null;
+
+			endUser = StringUtils.replace(endUser, "@carbon.super", "");
+			if (StringUtils.endsWith(endUser, tenant)) {
+				return StringUtils.substring(endUser, 0, (-1 * tenant.length() - 1));
+			} else if (endUser.contains("@")){
+				return StringUtils.substringBefore(endUser, "@");
+			} else if (endUser.contains("/")){
+				return StringUtils.substringAfter(endUser, "/");
+			} else {
+				return endUser;
+			}
+		}
+
+		private static List<String> resolveRoles(Object roleClaim) {
+			List<String> roles = new ArrayList<String>();
+			if (roleClaim instanceof Collection) {
+				for (Object role: (Collection<?>)roleClaim) {
+					if (role != null) roles.add(role.toString());
+				}
+			}
+			else if (roleClaim != null) {
+				String[] split = StringUtils.split(roleClaim.toString(), ",");
+				Collections.addAll(roles, split);
+			}
+			return Collections.unmodifiableList(roles);
+		}
+
+		private static Date resolveExpirationTime(AgaveClaims claims) {
+			if (claims.claimsSet != null) {
+				return claims.claimsSet.getExpirationTime();
+			}
+
+			Object exp = claims.json.get(EXPIRATION_CLAIM);
+			if (exp instanceof Date) {
+				return (Date)exp;
+			} else if (exp instanceof Number) {
+				return new Date(((Number)exp).longValue() * 1000);
+			} else {
+				return null;
+			}
+		}
+	}
+}
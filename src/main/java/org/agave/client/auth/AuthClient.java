@@ -1,10 +1,15 @@
 package org.agave.client.auth;
 
 import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import org.agave.client.ApiException;
 import org.agave.client.cache.LocalAgaveAuthConfig;
+import org.agave.client.common.Futures;
 import org.agave.client.model.Client;
 
 import com.github.scribejava.core.model.OAuth2AccessToken;
@@ -37,4 +42,62 @@ public interface AuthClient {
 	 */
 	public boolean revokeToken(String username, byte[] password) 
 	throws ApiException;
+	
+	/**
+	 * Fetch a token for the user without blocking the calling thread. The 
+	 * default implementation runs {@link #getToken(String, byte[])} on the
+	 * executor. Cancelling the returned future stops the caller waiting, but
+	 * does not interrupt a call to the auth server already under way.
+	 * 
+	 * @param username
+	 * @param password
+	 * @param executor the executor to run the token calls on
+	 * @return a future completing with the user's token, or exceptionally 
+	 * with the exception {@link #getToken(String, byte[])} would throw
+	 */
+	public default CompletableFuture<LocalAgaveAuthConfig> getTokenAsync(final String username, final byte[] password, Executor executor) 
+	{
+		return Futures.callAsync(new Callable<LocalAgaveAuthConfig>() {
+			@Override
+			public LocalAgaveAuthConfig call() throws Exception {
+				return getToken(username, password);
+			}
+		}, executor);
+	}
+	
+	/**
+	 * Fetch a token for the user without blocking the calling thread, giving 
+	 * up after the deadline.
+	 * 
+	 * @param username
+	 * @param password
+	 * @param executor the executor to run the token calls on
+	 * @param timeout how long to wait for the token
+	 * @param unit the unit of {@code timeout}
+	 * @return a future completing with the user's token, or exceptionally 
+	 * with a {@link java.util.concurrent.TimeoutException} if none arrived in time
+	 */
+	public default CompletableFuture<LocalAgaveAuthConfig> getTokenAsync(String username, byte[] password, Executor executor, long timeout, TimeUnit unit) 
+	{
+		return Futures.orTimeout(getTokenAsync(username, password, executor), timeout, unit);
+	}
+	
+	/**
+	 * Revoke the user's token without blocking the calling thread. The default
+	 * implementation runs {@link #revokeToken(String, byte[])} on the executor.
+	 * 
+	 * @param username
+	 * @param password
+	 * @param executor the executor to run the revocation on
+	 * @return a future completing with the result of {@link #revokeToken(String, byte[])}
+	 */
+	public default CompletableFuture<Boolean> revokeTokenAsync(final String username, final byte[] password, Executor executor) 
+	{
+		return Futures.callAsync(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return revokeToken(username, password);
+			}
+		}, executor);
+	}
 }
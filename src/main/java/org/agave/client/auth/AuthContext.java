@@ -0,0 +1,254 @@
+/**
+ *
+ */
+package org.agave.client.auth;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * Immutable identity of an authenticated request: the verified claims of
+ * its JWT and the raw token itself. A context is bound to a thread either by
+ * {@link JWTClient#parse(String, String)}, for compatibility with the static
+ * {@code JWTClient.getCurrent*} getters, or explicitly for the span of a
+ * try-with-resources block:
+ *
+ * <pre>
+ * try (AuthContext.Scope scope = context.activate()) {
+ *     ...
+ * }
+ * </pre>
+ *
+ * Work handed to other threads carries the context along by wrapping the
+ * task or executor with the methods on this class, so worker threads see
+ * the same identity without re-verifying the token, and never keep it once
+ * the task completes.
+ *
+ * @author dooley
+ *
+ */
+public final class AuthContext {
+
+	private static final ThreadLocal<AuthContext> current = new ThreadLocal<AuthContext>();
+
+	/**
+	 * A context holding no identity.
+	 */
+	public static final AuthContext EMPTY = new AuthContext(null, null);
+
+	private final AgaveClaims claims;
+	private final String rawJWT;
+
+	private AuthContext(AgaveClaims claims, String rawJWT) {
+		this.claims = claims;
+		this.rawJWT = rawJWT;
+	}
+
+	/**
+	 * @param claims the verified claims
+	 * @param rawJWT the serialized token the claims were read from
+	 * @return a new context
+	 */
+	public static AuthContext of(AgaveClaims claims, String rawJWT) {
+		return new AuthContext(claims, rawJWT);
+	}
+
+	/**
+	 * @return the context bound to the current thread or {@link #EMPTY}
+	 */
+	public static AuthContext current() {
+		AuthContext context = current.get();
+		return context == null ? EMPTY : context;
+	}
+
+	/**
+	 * Binds the context to the current thread until replaced or cleared.
+	 * Prefer {@link #activate()}, which restores the previous context.
+	 *
+	 * @param context the context to bind, or null to clear
+	 */
+	public static void setCurrent(AuthContext context) {
+		if (context == null || context == EMPTY) {
+			current.remove();
+		} else {
+			current.set(context);
+		}
+	}
+
+	/**
+	 * Removes any context bound to the current thread. Pooled threads which
+	 * call {@link JWTClient#parse(String, String)} directly should call this
+	 * when the request finishes.
+	 */
+	public static void clear() {
+		current.remove();
+	}
+
+	/**
+	 * Binds this context to the current thread until the returned scope is
+	 * closed, at which point the previous context is restored.
+	 *
+	 * @return the scope to close
+	 */
+	public Scope activate() {
+		AuthContext previous = current.get();
+		setCurrent(this);
+		return new Scope(previous);
+	}
+
+	/**
+	 * @return the verified claims, or null if there is no identity
+	 */
+	public AgaveClaims getClaims() {
+		return claims;
+	}
+
+	/**
+	 * @return the serialized JWT, or null if there is none
+	 */
+	public String getRawJWT() {
+		return rawJWT;
+	}
+
+	/**
+	 * @return true if this context holds no claims
+	 */
+	public boolean isEmpty() {
+		return claims == null;
+	}
+
+	/**
+	 * @param claims the claims to hold
+	 * @return a copy of this context with the claims replaced
+	 */
+	public AuthContext withClaims(AgaveClaims claims) {
+		return new AuthContext(claims, rawJWT);
+	}
+
+	/**
+	 * @param rawJWT the serialized token to hold
+	 * @return a copy of this context with the raw JWT replaced
+	 */
+	public AuthContext withRawJWT(String rawJWT) {
+		return new AuthContext(claims, rawJWT);
+	}
+
+	/**
+	 * @param task the task to run
+	 * @return a task running {@code task} with this context active
+	 */
+	public Runnable wrap(final Runnable task) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				Scope scope = activate();
+				try {
+					task.run();
+				} finally {
+					scope.close();
+				}
+			}
+		};
+	}
+
+	/**
+	 * @param task the task to run
+	 * @return a task calling {@code task} with this context active
+	 */
+	public <V> Callable<V> wrap(final Callable<V> task) {
+		return new Callable<V>() {
+			@Override
+			public V call() throws Exception {
+				Scope scope = activate();
+				try {
+					return task.call();
+				} finally {
+					scope.close();
+				}
+			}
+		};
+	}
+
+	/**
+	 * @param supplier the supplier to call
+	 * @return a supplier calling {@code supplier} with this context active
+	 */
+	public <V> Supplier<V> wrap(final Supplier<V> supplier) {
+		return new Supplier<V>() {
+			@Override
+			public V get() {
+				Scope scope = activate();
+				try {
+					return supplier.get();
+				} finally {
+					scope.close();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Wraps an executor so every task submitted to it runs with the context
+	 * of the submitting thread, captured at submission time.
+	 *
+	 * @param executor the executor running the tasks
+	 * @return an executor propagating the submitter's context
+	 */
+	public static Executor propagating(final Executor executor) {
+		return new Executor() {
+			@Override
+			public void execute(Runnable task) {
+				executor.execute(current().wrap(task));
+			}
+		};
+	}
+
+	/**
+	 * Same as {@link CompletableFuture#supplyAsync(Supplier, Executor)} with
+	 * the supplier run in the context of the calling thread. Dependent stages
+	 * which need the context should be added with an executor wrapped by
+	 * {@link #propagating(Executor)}.
+	 *
+	 * @param supplier the work to run
+	 * @param executor the executor running it
+	 * @return a future completing with the supplier's result
+	 */
+	public static <V> CompletableFuture<V> supplyAsync(Supplier<V> supplier, Executor executor) {
+		return CompletableFuture.supplyAsync(current().wrap(supplier), executor);
+	}
+
+	/**
+	 * Same as {@link CompletableFuture#runAsync(Runnable, Executor)} with the
+	 * task run in the context of the calling thread.
+	 *
+	 * @param task the work to run
+	 * @param executor the executor running it
+	 * @return a future completing when the task finishes
+	 */
+	public static CompletableFuture<Void> runAsync(Runnable task, Executor executor) {
+		return CompletableFuture.runAsync(current().wrap(task), executor);
+	}
+
+	/**
+	 * Active binding of a context to a thread. Closing it restores whatever
+	 * context was bound before. Scopes must be closed on the thread that
+	 * opened them, in reverse order of opening.
+	 */
+	public static final class Scope implements AutoCloseable {
+		private final AuthContext previous;
+		private boolean closed;
+
+		private Scope(AuthContext previous) {
+			this.previous = previous;
+		}
+
+		@Override
+		public void close() {
+			if (closed) return;
+			closed = true;
+			setCurrent(previous);
+		}
+	}
+}
@@ -0,0 +1,365 @@
+/**
+ *
+ */
+package org.agave.client.auth;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.interfaces.RSAPublicKey;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.minidev.json.JSONObject;
+import net.minidev.json.parser.JSONParser;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.ReadOnlyJWSHeader;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.ReadOnlyJWTClaimsSet;
+
+/**
+ * Parses compact serialized JWT directly from a byte buffer, such as a
+ * header value read off the wire, without first converting it to a
+ * {@link String}. The three segments are located in place, the payload and
+ * signature are Base64URL decoded into buffers owned by the parser and
+ * reused across calls, and the signing input is handed to the
+ * {@link SHA256withRSAVerifier} straight from the source buffer. Decoded
+ * headers are interned since every token from a tenant carries the same one.
+ *
+ * Parser instances are not thread safe. Use {@link #get()} to obtain the
+ * instance bound to the current thread. The state of the last parsed token,
+ * including the source buffer, is only valid until the next call to
+ * {@code parse} on the same instance.
+ *
+ * @author dooley
+ *
+ */
+public final class CompactJWTParser {
+
+	/**
+	 * Upper bound on the number of distinct headers interned. Headers seen
+	 * after the table fills are still parsed, just not retained.
+	 */
+	private static final int MAX_INTERNED_HEADERS = 256;
+
+	private static final ConcurrentHashMap<HeaderKey, JWSHeader> internedHeaders =
+			new ConcurrentHashMap<HeaderKey, JWSHeader>();
+
+	private static final ThreadLocal<CompactJWTParser> threadParser = new ThreadLocal<CompactJWTParser>() {
+		@Override
+		protected CompactJWTParser initialValue() {
+			return new CompactJWTParser();
+		}
+	};
+
+	private static final byte[] BASE64URL_DECODE_TABLE = new byte[128];
+	static {
+		Arrays.fill(BASE64URL_DECODE_TABLE, (byte)-1);
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+		for (int i = 0; i < alphabet.length(); i++) {
+			BASE64URL_DECODE_TABLE[alphabet.charAt(i)] = (byte)i;
+		}
+	}
+
+	private final HeaderKey headerProbe = new HeaderKey();
+
+	private byte[] source;
+	private int signingInputOffset;
+	private int signingInputLength;
+	private int payloadOffset;
+	private int payloadLength;
+
+	private JWSHeader header;
+	private byte[] payload = new byte[1024];
+	private int decodedPayloadLength;
+	private byte[] signature = new byte[512];
+	private int decodedSignatureLength;
+	private byte[] directBufferCopy = new byte[0];
+
+	private CompactJWTParser() {}
+
+	/**
+	 * @return the parser bound to the current thread
+	 */
+	public static CompactJWTParser get() {
+		return threadParser.get();
+	}
+
+	/**
+	 * Parses the compact JWT held in the remaining bytes of the buffer. The
+	 * buffer position is not changed. Heap buffers are read in place, direct
+	 * buffers are first copied into a reusable array.
+	 *
+	 * @param token buffer holding the serialized token
+	 * @return this parser, positioned on the token
+	 * @throws ParseException if the token is not a well formed signed JWT
+	 */
+	public CompactJWTParser parse(ByteBuffer token) throws ParseException {
+		int length = token.remaining();
+		if (token.hasArray()) {
+			return parse(token.array(), token.arrayOffset() + token.position(), length);
+		}
+
+		if (directBufferCopy.length < length) {
+			directBufferCopy = new byte[length];
+		}
+		int position = token.position();
+		token.get(directBufferCopy, 0, length);
+		token.position(position);
+
+		return parse(directBufferCopy, 0, length);
+	}
+
+	/**
+	 * Parses the compact JWT in the given range of the array. The array is
+	 * referenced, not copied, so it must not be modified until the caller is
+	 * done with this parser.
+	 *
+	 * @param token array holding the serialized token
+	 * @param offset start of the token in the array
+	 * @param length length of the token
+	 * @return this parser, positioned on the token
+	 * @throws ParseException if the token is not a well formed signed JWT
+	 */
+	public CompactJWTParser parse(byte[] token, int offset, int length) throws ParseException {
+		this.source = null;
+		this.header = null;
+
+		int end = offset + length;
+		int firstDot = indexOf(token, (byte)'.', offset, end);
+		int secondDot = firstDot < 0 ? -1 : indexOf(token, (byte)'.', firstDot + 1, end);
+		if (secondDot < 0 || indexOf(token, (byte)'.', secondDot + 1, end) >= 0) {
+			throw new ParseException("Invalid serialized JWT. Expected exactly three segments", 0);
+		}
+		if (firstDot == offset || secondDot == firstDot + 1 || secondDot == end - 1) {
+			throw new ParseException("Invalid serialized JWT. Empty segment", 0);
+		}
+
+		this.header = internHeader(token, offset, firstDot - offset);
+
+		this.payloadOffset = firstDot + 1;
+		this.payloadLength = secondDot - payloadOffset;
+		this.decodedPayloadLength = -1;
+
+		int signatureLength = end - secondDot - 1;
+		signature = ensureCapacity(signature, decodedLength(signatureLength));
+		decodedSignatureLength = decodeBase64URL(token, secondDot + 1, signatureLength, signature);
+
+		this.source = token;
+		this.signingInputOffset = offset;
+		this.signingInputLength = secondDot - offset;
+
+		return this;
+	}
+
+	/**
+	 * @return the interned header of the last parsed token. Do not modify.
+	 */
+	public ReadOnlyJWSHeader getHeader() {
+		return header;
+	}
+
+	/**
+	 * Verifies the signature of the last parsed token. The signing input is
+	 * read directly from the source buffer.
+	 *
+	 * @param publicKey the tenant public key
+	 * @return true if the token was signed by the key
+	 * @throws JOSEException if the algorithm is not supported or the key
+	 * cannot be used
+	 */
+	public boolean verify(RSAPublicKey publicKey) throws JOSEException {
+		checkParsed();
+
+		JWSAlgorithm algorithm = header.getAlgorithm();
+		if (!JWSAlgorithm.RS256.equals(algorithm) && !CryptoBootstrap.SHA256_WITH_RSA.equals(algorithm)) {
+			throw new JOSEException("Unsupported JWS algorithm " + algorithm);
+		}
+
+		return SHA256withRSAVerifier.verify(publicKey,
+				source, signingInputOffset, signingInputLength,
+				signature, 0, decodedSignatureLength);
+	}
+
+	/**
+	 * Decodes the payload of the last parsed token into the parser's payload
+	 * buffer. Valid bytes are in {@code [0, getPayloadLength())}.
+	 *
+	 * @return the reusable payload buffer
+	 * @throws ParseException if the payload is not valid Base64URL
+	 */
+	public byte[] getPayloadBuffer() throws ParseException {
+		checkParsed();
+
+		if (decodedPayloadLength < 0) {
+			payload = ensureCapacity(payload, decodedLength(payloadLength));
+			decodedPayloadLength = decodeBase64URL(source, payloadOffset, payloadLength, payload);
+		}
+		return payload;
+	}
+
+	/**
+	 * @return the number of valid bytes in the decoded payload buffer
+	 * @throws ParseException if the payload is not valid Base64URL
+	 */
+	public int getPayloadLength() throws ParseException {
+		getPayloadBuffer();
+		return decodedPayloadLength;
+	}
+
+	/**
+	 * Decodes and parses the payload of the last parsed token as a JWT
+	 * claims set. This allocates the claims objects, so callers on the hot
+	 * path should verify first and only decode the claims they need.
+	 *
+	 * @return the claims of the last parsed token
+	 * @throws ParseException if the payload is not a valid claims set
+	 */
+	public ReadOnlyJWTClaimsSet getJWTClaimsSet() throws ParseException {
+		byte[] buffer = getPayloadBuffer();
+		try {
+			Object json = new JSONParser(JSONParser.MODE_RFC4627).parse(Arrays.copyOf(buffer, decodedPayloadLength));
+			if (!(json instanceof JSONObject)) {
+				throw new ParseException("Invalid JWT payload. Expected a JSON object", 0);
+			}
+			return JWTClaimsSet.parse((JSONObject)json);
+		}
+		catch (net.minidev.json.parser.ParseException e) {
+			throw new ParseException("Invalid JWT payload: " + e.getMessage(), 0);
+		}
+	}
+
+	private void checkParsed() {
+		if (source == null) {
+			throw new IllegalStateException("No token has been parsed");
+		}
+	}
+
+	/**
+	 * Looks up the decoded header for the raw header segment, parsing and
+	 * interning it on first sight. Lookups use a reusable probe key, so hits
+	 * allocate nothing.
+	 */
+	private JWSHeader internHeader(byte[] token, int offset, int length) throws ParseException {
+		headerProbe.wrap(token, offset, length);
+		JWSHeader interned = internedHeaders.get(headerProbe);
+		if (interned != null) {
+			return interned;
+		}
+
+		byte[] decoded = new byte[decodedLength(length)];
+		int decodedLength = decodeBase64URL(token, offset, length, decoded);
+		JWSHeader parsed = JWSHeader.parse(new String(decoded, 0, decodedLength, StandardCharsets.UTF_8));
+
+		if (internedHeaders.size() < MAX_INTERNED_HEADERS) {
+			JWSHeader existing = internedHeaders.putIfAbsent(headerProbe.copy(), parsed);
+			if (existing != null) {
+				return existing;
+			}
+		}
+		return parsed;
+	}
+
+	private static int indexOf(byte[] bytes, byte b, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (bytes[i] == b) return i;
+		}
+		return -1;
+	}
+
+	private static byte[] ensureCapacity(byte[] buffer, int capacity) {
+		return buffer.length >= capacity ? buffer : new byte[Math.max(capacity, buffer.length * 2)];
+	}
+
+	private static int decodedLength(int encodedLength) {
+		return (encodedLength * 3) / 4 + 3;
+	}
+
+	/**
+	 * Decodes unpadded or padded Base64URL from the source range into the
+	 * start of the destination buffer.
+	 *
+	 * @return the number of decoded bytes
+	 * @throws ParseException if the input contains characters outside the
+	 * Base64URL alphabet or has an impossible length
+	 */
+	static int decodeBase64URL(byte[] src, int offset, int length, byte[] dest) throws ParseException {
+		int end = offset + length;
+		while (end > offset && src[end - 1] == '=') {
+			end--;
+		}
+		if ((end - offset) % 4 == 1) {
+			throw new ParseException("Invalid Base64URL length", offset);
+		}
+
+		int bits = 0;
+		int bitCount = 0;
+		int written = 0;
+		for (int i = offset; i < end; i++) {
+			int c = src[i];
+			int value = c < 0 ? -1 : BASE64URL_DECODE_TABLE[c];
+			if (value < 0) {
+				throw new ParseException("Invalid Base64URL character", i);
+			}
+			bits = (bits << 6) | value;
+			bitCount += 6;
+			if (bitCount >= 8) {
+				bitCount -= 8;
+				dest[written++] = (byte)(bits >> bitCount);
+			}
+		}
+		return written;
+	}
+
+	/**
+	 * Map key over a range of raw header bytes. The same instance serves
+	 * as a non-owning lookup probe and, once copied, an owning table key.
+	 */
+	private static final class HeaderKey {
+		private byte[] bytes;
+		private int offset;
+		private int length;
+		private int hash;
+
+		void wrap(byte[] bytes, int offset, int length) {
+			this.bytes = bytes;
+			this.offset = offset;
+			this.length = length;
+
+			int h = 1;
+			for (int i = offset; i < offset + length; i++) {
+				h = 31 * h + bytes[i];
+			}
+			this.hash = h;
+		}
+
+		HeaderKey copy() {
+			HeaderKey key = new HeaderKey();
+			key.bytes = Arrays.copyOfRange(bytes, offset, offset + length);
+			key.offset = 0;
+			key.length = length;
+			key.hash = hash;
+			return key;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (!(o instanceof HeaderKey)) return false;
+			HeaderKey that = (HeaderKey)o;
+			if (hash != that.hash || length != that.length) return false;
+			for (int i = 0; i < length; i++) {
+				if (bytes[offset + i] != that.bytes[that.offset + i]) return false;
+			}
+			return true;
+		}
+	}
+}
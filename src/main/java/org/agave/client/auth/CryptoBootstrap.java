@@ -0,0 +1,128 @@
+/**
+ *
+ */
+package org.agave.client.auth;
+
+import java.security.Provider;
+import java.security.Security;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+
+import org.agave.client.common.AuthSettings;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.Requirement;
+import com.nimbusds.jose.crypto.RSASSAVerifier;
+
+/**
+ * One-time setup of the JCA providers and nimbus algorithm registration
+ * needed to verify Agave JWT. The setup runs the first time any method
+ * of this class is called, or eagerly through {@link #init()}, and never
+ * again for the life of the JVM.
+ *
+ * The JDK's SunRsaSign and SUN providers are used for signatures and
+ * certificates by default. BouncyCastle is only loaded and registered when
+ * the JDK lacks a needed algorithm or when {@link AuthSettings#JWT_CRYPTO_PROVIDER}
+ * is set to {@code BC}.
+ *
+ * @author dooley
+ *
+ */
+public final class CryptoBootstrap {
+
+	private static final Logger log = LoggerFactory.getLogger(CryptoBootstrap.class);
+
+	/**
+	 * The non-standard algorithm name used by the API Manager in the JWT header.
+	 */
+	public static final JWSAlgorithm SHA256_WITH_RSA = new JWSAlgorithm("SHA256withRSA", Requirement.OPTIONAL);
+
+	private static final String BOUNCY_CASTLE = "BC";
+
+	private final Provider signatureProvider;
+	private final Provider certificateProvider;
+
+	private static class InstanceHolder {
+		private static final CryptoBootstrap INSTANCE = new CryptoBootstrap();
+	}
+
+	private CryptoBootstrap() {
+		// the header filter of every new verifier copies this set, so it
+		// only has to be registered once, before the first verifier exists.
+		synchronized (RSASSAVerifier.SUPPORTED_ALGORITHMS) {
+			RSASSAVerifier.SUPPORTED_ALGORITHMS.add(SHA256_WITH_RSA);
+		}
+
+		boolean forceBouncyCastle = StringUtils.equalsIgnoreCase(AuthSettings.JWT_CRYPTO_PROVIDER, BOUNCY_CASTLE);
+
+		Provider provider = forceBouncyCastle ? null : findProvider("Signature", "SHA256withRSA", "SunRsaSign");
+		this.signatureProvider = provider == null ? getBouncyCastle() : provider;
+
+		provider = forceBouncyCastle ? null : findProvider("CertificateFactory", "X.509", "SUN");
+		this.certificateProvider = provider == null ? getBouncyCastle() : provider;
+
+		log.debug("Using " + signatureProvider.getName() + " for JWT signature verification and "
+				+ certificateProvider.getName() + " for tenant certificates.");
+	}
+
+	/**
+	 * Runs the crypto setup if it has not already run. Safe to call any
+	 * number of times from any thread.
+	 */
+	public static void init() {
+		getInstance();
+	}
+
+	private static CryptoBootstrap getInstance() {
+		return InstanceHolder.INSTANCE;
+	}
+
+	/**
+	 * @return the provider to use for SHA256withRSA {@link java.security.Signature} engines
+	 */
+	public static Provider getSignatureProvider() {
+		return getInstance().signatureProvider;
+	}
+
+	/**
+	 * Creates a new X.509 {@link CertificateFactory}. Factories are not
+	 * guaranteed to be thread safe, so callers should not share them.
+	 *
+	 * @return a new X.509 certificate factory
+	 * @throws CertificateException if the provider cannot supply one
+	 */
+	public static CertificateFactory newCertificateFactory() throws CertificateException {
+		return CertificateFactory.getInstance("X.509", getInstance().certificateProvider);
+	}
+
+	/**
+	 * Returns the named provider if it is installed and supports the service.
+	 * Falls back to any installed provider supporting it.
+	 */
+	private static Provider findProvider(String type, String algorithm, String preferredProvider) {
+		Provider provider = Security.getProvider(preferredProvider);
+		if (provider != null && provider.getService(type, algorithm) != null) {
+			return provider;
+		}
+
+		Provider[] providers = Security.getProviders(type + "." + algorithm);
+		return providers == null || providers.length == 0 ? null : providers[0];
+	}
+
+	/**
+	 * Registers BouncyCastle if another component has not already done so.
+	 * Kept in its own method so the provider classes are never loaded
+	 * unless needed.
+	 */
+	private static synchronized Provider getBouncyCastle() {
+		Provider provider = Security.getProvider(BOUNCY_CASTLE);
+		if (provider == null) {
+			provider = new org.bouncycastle.jce.provider.BouncyCastleProvider();
+			Security.addProvider(provider);
+		}
+		return provider;
+	}
+}
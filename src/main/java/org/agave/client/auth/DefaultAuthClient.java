@@ -4,49 +4,36 @@
 package org.agave.client.auth;
 
 import java.io.IOException;
-import java.time.LocalDateTime;
-import java.time.temporal.ChronoUnit;
-import java.time.temporal.TemporalUnit;
+import java.time.ZoneId;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.cache.Cache;
-import javax.cache.CacheException;
-import javax.cache.annotation.CacheResult;
-
 import org.agave.client.ApiException;
 import org.agave.client.api.ClientsApi;
 import org.agave.client.cache.LocalAgaveAuthConfig;
-import org.agave.client.cache.MultitenantCacheManager;
 import org.agave.client.model.Client;
 import org.agave.client.model.ClientRequest;
 import org.agave.client.model.ClientSubscriptionTier;
 import org.agave.client.model.SingleClientResponse;
 import org.agave.client.model.Tenant;
 
-import com.github.scribejava.apis.AgaveApi;
-import com.github.scribejava.core.builder.ServiceBuilder;
 import com.github.scribejava.core.model.OAuth2AccessToken;
 import com.github.scribejava.core.oauth.CustomGrantTypeOAuth20Service;
-import com.github.scribejava.core.oauth.OAuth20Service;
 
 /**
  * @author dooley
  *
  */
-public class DefaultAuthClient implements AuthClient {
+public class DefaultAuthClient extends AbstractAuthClient implements AuthClient {
 	
 	private final static Logger logger = Logger.getLogger(DefaultAuthClient.class.getName());
-	
-	private Tenant tenant;
-	private String clientApplicationId;
-	private MultitenantCacheManager cacheManager;
-	private Cache<String, LocalAgaveAuthConfig> cache;
 
 	public DefaultAuthClient(Tenant tenant, String clientApplicationId) {
-		this.tenant = tenant;
-		this.clientApplicationId = clientApplicationId;
+		super(tenant, clientApplicationId);
 	}
 	
 	/**
@@ -65,70 +52,75 @@ public class DefaultAuthClient implements AuthClient {
 	public LocalAgaveAuthConfig getToken(String username, byte[] password) 
 	throws ApiException, IOException, InterruptedException, ExecutionException 
 	{
-		OAuth2AccessToken token = null;
-		LocalAgaveAuthConfig localAuthConfig = null;
-		if (!getCache().containsKey(username)) {
-			
-			ClientsApi clientsApi = new ClientsApi();
-			clientsApi.getApiClient().setBasePath(getTenant().getBaseUrl());
-			clientsApi.getApiClient().setUsername(username);
-			clientsApi.getApiClient().setPassword(new String(password));
-			
-			// define a new client application to register for the user in this namespace
-			ClientRequest requestBody = new ClientRequest();
-			requestBody.setName(getCacheManager().getCacheName() + "/" + username);
-			requestBody.setDescription("Auto-generated client application for delegated credential caching");
-			requestBody.setTier(ClientSubscriptionTier.UNLIMITED);
-			
-			try {
-				SingleClientResponse response = clientsApi.addClient(requestBody);
-				Client client = response.getResult();
-
-				// fetch a new token with the generate client;
-				token = _getToken(client, username, password);
-				
-				// add the client, tenant, user, and token info to a local auth config
-				localAuthConfig = new LocalAgaveAuthConfig(getTenant(), client, username, token);
-				
-				// cache for later reuse
-				getCache().put(username, localAuthConfig);
-			}
-			catch (ApiException e) {
-				throw new IOException("Unable to create client application for user " + 
-						username + " in tenant " + getTenant().getCode(), e);
-			}
+		return getUserToken(username, password);
+	}
+	
+	/**
+	 * Fetches a token for the given user without blocking the calling thread.
+	 * Registering the user's client and requesting its token run as separate
+	 * stages on the executor, so no thread waits on another while the calls
+	 * to the auth server are in flight. Concurrent calls for the same user,
+	 * synchronous or not, share a single exchange with the auth server.
+	 * 
+	 * Each caller receives its own future. Cancelling it only stops that
+	 * caller waiting; an exchange already under way still completes and 
+	 * caches its token for the next request.
+	 * 
+	 * @param username
+	 * @param password
+	 * @param executor the executor to run the token calls on
+	 * @return a future completing with the user's token
+	 */
+	@Override
+	public CompletableFuture<LocalAgaveAuthConfig> getTokenAsync(String username, byte[] password, Executor executor) 
+	{
+		return getUserTokenAsync(username, password, executor);
+	}
+	
+	/**
+	 * Registers a new client application for the user in this namespace.
+	 * 
+	 * @param username
+	 * @param password
+	 * @return the registered client, including its key and secret
+	 * @throws IOException if the client could not be created
+	 */
+	protected Client registerClient(String username, byte[] password) 
+	throws IOException 
+	{
+		ClientsApi clientsApi = new ClientsApi();
+		clientsApi.getApiClient().setBasePath(getTenant().getBaseUrl());
+		clientsApi.getApiClient().setUsername(username);
+		clientsApi.getApiClient().setPassword(new String(password));
+		
+		// define a new client application to register for the user in this namespace
+		ClientRequest requestBody = new ClientRequest();
+		requestBody.setName(getCacheManager().getCacheName() + "/" + username);
+		requestBody.setDescription("Auto-generated client application for delegated credential caching");
+		requestBody.setTier(ClientSubscriptionTier.UNLIMITED);
+		
+		try {
+			SingleClientResponse response = clientsApi.addClient(requestBody);
+			return response.getResult();
 		}
-		// we already have a valid token and client for the user in the current context,
-		// check for validity of the current token and use if valid
-		else {
-			localAuthConfig = getCache().get(username);
-			
-			// if expired, walk a refresh flow
-			if (localAuthConfig.getExpiresIn() <= 0) {
-				try {
-					token = _refreshToken(localAuthConfig);
-				}
-				catch (Exception e) {
-					// refresh failed, try to pull a fresh one.
-					// fetch a new token with the generate client;
-					Client client = new Client();
-					client.setKey(localAuthConfig.getApiKey());
-					client.setSecret(localAuthConfig.getApiSecret());
-					
-					token = _getToken(client, username, password);
-				}
-			
-				// if either call was successful, build a local auth config for caching
-				localAuthConfig.setAccessToken(token.getAccessToken());
-				localAuthConfig.setRefreshToken(token.getRefreshToken());
-				localAuthConfig.setExpiresIn(token.getExpiresIn());
-				localAuthConfig.setExpiresAt(LocalDateTime.now().plus(token.getExpiresIn().longValue(), ChronoUnit.SECONDS));
-				
-				getCache().put(username, localAuthConfig);
-			}
+		catch (ApiException e) {
+			throw new IOException("Unable to create client application for user " + 
+					username + " in tenant " + getTenant().getCode(), e);
 		}
-		
-		return localAuthConfig;
+	}
+	
+	@Override
+	Client createClient(String username, byte[] password) 
+	throws IOException 
+	{
+		return registerClient(username, password);
+	}
+	
+	@Override
+	OAuth2AccessToken issueToken(Client client, String username, byte[] password) 
+	throws ApiException, IOException, InterruptedException, ExecutionException 
+	{
+		return _getToken(client, username, password);
 	}
 	
 	/**
@@ -150,12 +142,15 @@ public class DefaultAuthClient implements AuthClient {
 		boolean success = false;
 		if (localAuthConfig != null) {
 			
+			cancelRefresh(username);
+			
+			// deny the token locally right away, even if the server call fails
+			JWTClient.revoke(localAuthConfig.getAccessToken(), localAuthConfig.getExpiresAt() == null ? null :
+					Date.from(localAuthConfig.getExpiresAt().atZone(ZoneId.systemDefault()).toInstant()));
+			
 			try {
-				final CustomGrantTypeOAuth20Service service = 
-						(CustomGrantTypeOAuth20Service) new ServiceBuilder()
-					        .apiKey(localAuthConfig.getApiKey())
-					        .apiSecret(localAuthConfig.getApiSecret())
-					        .build(AgaveApi.instance());
+				final CustomGrantTypeOAuth20Service service = OAuthServiceRegistry.get(
+						getTenant().getBaseUrl(), localAuthConfig.getApiKey(), localAuthConfig.getApiSecret());
 		
 				service.revokeAccessToken(localAuthConfig.getAccessToken());
 				success = true;
@@ -172,6 +167,7 @@ public class DefaultAuthClient implements AuthClient {
 				clientsApi.getApiClient().setPassword(new String(password));
 				
 				clientsApi.deleteClient(getCacheManager().getCacheName() + "/" + username);
+				OAuthServiceRegistry.remove(getTenant().getBaseUrl(), localAuthConfig.getApiKey());
 				
 				success = true;
 			}
@@ -208,85 +204,9 @@ public class DefaultAuthClient implements AuthClient {
 	protected OAuth2AccessToken _getToken(Client client, String username, byte[] password) 
 	throws ApiException, IOException, InterruptedException, ExecutionException 
 	{
-		final OAuth20Service service = new ServiceBuilder()
-	        .apiKey(client.getKey())
-	        .apiSecret(client.getSecret())
-	        .build(AgaveApi.instance());
+		final CustomGrantTypeOAuth20Service service = OAuthServiceRegistry.get(
+				getTenant().getBaseUrl(), client.getKey(), client.getSecret());
 	
 		return service.getAccessTokenPasswordGrant(username, new String(password));
 	}
-	
-	/**
-	 * Makes the call to get a new auth token using the existing token in the 
-	 * {@link LocalAgaveAuthConfig}.
-	 *  
-	 * @param localAuthConfig the current {@link LocalAgaveAuthConfig} for 
-	 * the user containing client info and refresh token to carry out this action.
-	 * @return valid {@link OAuth2AccessToken} for the {@code LocalAgaveAuthConfig#username}
-	 * @throws ApiException
-	 * @throws IOException
-	 * @throws InterruptedException
-	 * @throws ExecutionException
-	 */
-	protected OAuth2AccessToken _refreshToken(LocalAgaveAuthConfig localAuthConfig) 
-	throws ApiException, IOException, InterruptedException, ExecutionException 
-	{
-		final OAuth20Service service = new ServiceBuilder()
-	        .apiKey(localAuthConfig.getApiKey())
-	        .apiSecret(localAuthConfig.getApiSecret())
-	        .build(AgaveApi.instance());
-	
-		return service.refreshAccessToken(localAuthConfig.getRefreshToken());
-	}
-	
-	public MultitenantCacheManager getCacheManager() {
-		if (this.cacheManager == null) {
-			this.cacheManager = new MultitenantCacheManager(getTenant(), getClientApplicationId());
-		}
-		
-		return this.cacheManager;
-	}
-
-	/**
-	 * @return the cache for the 
-	 */
-	public Cache<String, LocalAgaveAuthConfig> getCache() 
-	throws CacheException 
-	{
-		if (this.cache == null) {
-			this.cache = cacheManager.getUserTokenCacheForClientApplication();
-		}
-		
-		return this.cache;
-	}
-
-	/**
-	 * @return the tenant
-	 */
-	public Tenant getTenant() {
-		return tenant;
-	}
-
-	/**
-	 * @param tenant the tenant to set
-	 */
-	public void setTenant(Tenant tenant) {
-		this.tenant = tenant;
-	}
-
-	/**
-	 * @return the clientApplicationId
-	 */
-	public String getClientApplicationId() {
-		return clientApplicationId;
-	}
-
-	/**
-	 * @param clientApplicationId the clientApplicationId to set
-	 */
-	public void setClientApplicationId(String clientApplicationId) {
-		this.clientApplicationId = clientApplicationId;
-	}
-
-
-}
+}
\ No newline at end of file
@@ -4,48 +4,49 @@
 package org.agave.client.auth;
 
 import java.io.IOException;
-import java.time.LocalDateTime;
-import java.time.temporal.ChronoUnit;
+import java.time.ZoneId;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.cache.Cache;
-import javax.cache.CacheException;
-
 import org.agave.client.ApiException;
 import org.agave.client.Settings;
 import org.agave.client.api.ClientsApi;
 import org.agave.client.cache.LocalAgaveAuthConfig;
-import org.agave.client.cache.MultitenantCacheManager;
+import org.agave.client.common.AuthSettings;
+import org.agave.client.common.Futures;
 import org.agave.client.model.Client;
 import org.agave.client.model.ClientRequest;
 import org.agave.client.model.ClientSubscriptionTier;
 import org.agave.client.model.SingleClientResponse;
 import org.agave.client.model.Tenant;
 
-import com.github.scribejava.apis.AgaveApi;
-import com.github.scribejava.core.builder.ServiceBuilder;
 import com.github.scribejava.core.model.OAuth2AccessToken;
 import com.github.scribejava.core.oauth.CustomGrantTypeOAuth20Service;
-import com.github.scribejava.core.oauth.OAuth20Service;
 
 /**
  * @author dooley
  *
  */
-public class ImpersonationAuthClient {
+public class ImpersonationAuthClient extends AbstractAuthClient {
 	
 	private final static Logger logger = Logger.getLogger(ImpersonationAuthClient.class.getName());
-	
-	private Tenant tenant;
-	private String clientApplicationId;
-	private MultitenantCacheManager cacheManager;
-	private Cache<String, LocalAgaveAuthConfig> cache;
 
 	public ImpersonationAuthClient(Tenant tenant, String clientApplicationId) {
-		this.tenant = tenant;
-		this.clientApplicationId = clientApplicationId;
+		super(tenant, clientApplicationId);
 	}
 	
 	/**
@@ -59,70 +60,155 @@ public class ImpersonationAuthClient {
 	public LocalAgaveAuthConfig getToken(String tokenUsername) 
 	throws ApiException, IOException, InterruptedException, ExecutionException 
 	{
-		OAuth2AccessToken token = null;
-		LocalAgaveAuthConfig localAuthConfig = null;
-		if (!getCache().containsKey(tokenUsername)) {
-			
-			ClientsApi clientsApi = new ClientsApi();
-			clientsApi.getApiClient().setBasePath(getTenant().getBaseUrl());
-			clientsApi.getApiClient().setUsername(Settings.SERVICE_ACCOUNT_USERNAME);
-			clientsApi.getApiClient().setPassword(Settings.SERVICE_ACCOUNT_PASSWORD);
-			
-			// define a new client application to register for the user in this namespace
-			ClientRequest requestBody = new ClientRequest();
-			requestBody.setName(getCacheManager().getCacheName() + "/" + tokenUsername);
-			requestBody.setDescription("Auto-generated client application for impersonation credential caching");
-			requestBody.setTier(ClientSubscriptionTier.UNLIMITED);
-			
-			try {
-				SingleClientResponse response = clientsApi.addClient(requestBody);
-				Client client = response.getResult();
-
-				// fetch a new token with the generate client;
-				token = _getToken(client, tokenUsername, Settings.SERVICE_ACCOUNT_USERNAME, Settings.SERVICE_ACCOUNT_PASSWORD);
-				
-				// add the client, tenant, user, and token info to a local auth config
-				localAuthConfig = new LocalAgaveAuthConfig(getTenant(), client, tokenUsername, token);
-				
-				// cache for later reuse
-				getCache().put(tokenUsername, localAuthConfig);
-			}
-			catch (ApiException e) {
-				throw new IOException("Unable to create impersonation client application for user " + 
-						tokenUsername + " in tenant " + getTenant().getCode(), e);
-			}
-		}
-		// we already have a valid token and client for the user in the current context,
-		// check for validity of the current token and use if valid
-		else {
-			localAuthConfig = getCache().get(tokenUsername);
-			
-			// if expired, walk a refresh flow
-			if (localAuthConfig.getExpiresIn() <= 0) {
-				try {
-					token = _refreshToken(localAuthConfig);
-				}
-				catch (Exception e) {
-					// refresh failed, try to pull a fresh one.
-					// fetch a new token with the generate client;
-					Client client = new Client();
-					client.setKey(localAuthConfig.getApiKey());
-					client.setSecret(localAuthConfig.getApiSecret());
-					
-					token = _getToken(client, tokenUsername, Settings.SERVICE_ACCOUNT_USERNAME, Settings.SERVICE_ACCOUNT_PASSWORD);
-				}
-			
-				// if either call was successful, build a local auth config for caching
-				localAuthConfig.setAccessToken(token.getAccessToken());
-				localAuthConfig.setRefreshToken(token.getRefreshToken());
-				localAuthConfig.setExpiresIn(token.getExpiresIn());
-				localAuthConfig.setExpiresAt(LocalDateTime.now().plus(token.getExpiresIn().longValue(), ChronoUnit.SECONDS));
-				
-				getCache().put(tokenUsername, localAuthConfig);
+		return getUserToken(tokenUsername, null);
+	}
+	
+	/**
+	 * Fetches a token for the given user without blocking the calling thread.
+	 * Registering the user's client and requesting its token run as separate
+	 * stages on the executor, so no thread waits on another while the calls
+	 * to the auth server are in flight. Concurrent calls for the same user,
+	 * synchronous or not, share a single exchange with the auth server.
+	 * 
+	 * Each caller receives its own future. Cancelling it only stops that
+	 * caller waiting; an exchange already under way still completes and 
+	 * caches its token for the next request.
+	 * 
+	 * @param tokenUsername
+	 * @param executor the executor to run the token calls on
+	 * @return a future completing with the user's token
+	 */
+	public CompletableFuture<LocalAgaveAuthConfig> getTokenAsync(String tokenUsername, Executor executor) 
+	{
+		return getUserTokenAsync(tokenUsername, null, executor);
+	}
+	
+	/**
+	 * Fetches a token for the given user without blocking the calling thread,
+	 * giving up after the deadline.
+	 * 
+	 * @param tokenUsername
+	 * @param executor the executor to run the token calls on
+	 * @param timeout how long to wait for the token
+	 * @param unit the unit of {@code timeout}
+	 * @return a future completing with the user's token, or exceptionally 
+	 * with a {@link java.util.concurrent.TimeoutException} if none arrived in time
+	 */
+	public CompletableFuture<LocalAgaveAuthConfig> getTokenAsync(String tokenUsername, Executor executor, long timeout, TimeUnit unit) 
+	{
+		return Futures.orTimeout(getTokenAsync(tokenUsername, executor), timeout, unit);
+	}
+	
+	/**
+	 * Revokes the user's token and client on the executor.
+	 * 
+	 * @param tokenUsername
+	 * @param executor the executor to run the revocation on
+	 * @return a future completing with the result of {@link #revokeToken(String)}
+	 */
+	public CompletableFuture<Boolean> revokeTokenAsync(final String tokenUsername, Executor executor) 
+	{
+		return Futures.callAsync(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return revokeToken(tokenUsername);
 			}
+		}, executor);
+	}
+	
+	/**
+	 * Mints or loads tokens for many users at once, as batch jobs acting on
+	 * behalf of each of them need. Up to {@code parallelism} users are worked
+	 * on at a time, each through {@link #getTokenAsync(String, Executor)}, so
+	 * cached tokens are returned without a call to the auth server. Results
+	 * are handed to the listener as each user completes, in no particular
+	 * order. A failure for one user is reported and the batch moves on.
+	 * Token requests still respect {@link AuthSettings#OAUTH_TOKEN_RATE_LIMIT}.
+	 * 
+	 * Cancelling the returned future stops new users being started. Users
+	 * already under way still complete and are reported.
+	 * 
+	 * @param tokenUsernames the users to fetch tokens for. Duplicates are fetched once.
+	 * @param parallelism the maximum number of users worked on at once
+	 * @param executor the executor to run the token calls on
+	 * @param listener receives each user's token or failure. Called concurrently from the executor.
+	 * @return a future completing once every user has been reported, with
+	 * the failed users and the reason each failed
+	 */
+	public CompletableFuture<Map<String, Throwable>> getTokens(Collection<String> tokenUsernames, int parallelism, 
+			Executor executor, TokenListener listener) 
+	{
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Parallelism must be at least 1");
 		}
 		
-		return localAuthConfig;
+		BulkTokenRequest request = new BulkTokenRequest(tokenUsernames, parallelism, executor, listener);
+		request.fill();
+		return request.result;
+	}
+	
+	/**
+	 * Registers a new impersonation client application for the user in this
+	 * namespace using the service account.
+	 * 
+	 * @param tokenUsername
+	 * @return the registered client, including its key and secret
+	 * @throws IOException if the client could not be created
+	 */
+	protected Client registerClient(String tokenUsername) 
+	throws IOException 
+	{
+		ClientsApi clientsApi = new ClientsApi();
+		clientsApi.getApiClient().setBasePath(getTenant().getBaseUrl());
+		clientsApi.getApiClient().setUsername(Settings.SERVICE_ACCOUNT_USERNAME);
+		clientsApi.getApiClient().setPassword(Settings.SERVICE_ACCOUNT_PASSWORD);
+		
+		// define a new client application to register for the user in this namespace
+		ClientRequest requestBody = new ClientRequest();
+		requestBody.setName(getCacheManager().getCacheName() + "/" + tokenUsername);
+		requestBody.setDescription("Auto-generated client application for impersonation credential caching");
+		requestBody.setTier(ClientSubscriptionTier.UNLIMITED);
+		
+		try {
+			SingleClientResponse response = clientsApi.addClient(requestBody);
+			return response.getResult();
+		}
+		catch (ApiException e) {
+			throw new IOException("Unable to create impersonation client application for user " + 
+					tokenUsername + " in tenant " + getTenant().getCode(), e);
+		}
+	}
+	
+	@Override
+	Client createClient(String tokenUsername, byte[] password) 
+	throws IOException 
+	{
+		return registerClient(tokenUsername);
+	}
+	
+	@Override
+	OAuth2AccessToken issueToken(Client client, String tokenUsername, byte[] password) 
+	throws ApiException, IOException, InterruptedException, ExecutionException 
+	{
+		return _getToken(client, tokenUsername, Settings.SERVICE_ACCOUNT_USERNAME, Settings.SERVICE_ACCOUNT_PASSWORD);
+	}
+	
+	/**
+	 * Renews the cached token with its refresh token, minting a new one with
+	 * the service account if the refresh token is no longer accepted.
+	 */
+	@Override
+	OAuth2AccessToken renewCachedToken(LocalAgaveAuthConfig localAuthConfig, String tokenUsername) 
+	throws ApiException, IOException, InterruptedException, ExecutionException 
+	{
+		try {
+			return _refreshToken(localAuthConfig);
+		}
+		catch (Exception e) {
+			// refresh token rejected, mint a fresh one with the service account
+			OAuthServiceRegistry.acquireTokenPermit();
+			return issueToken(getClient(localAuthConfig), tokenUsername, null);
+		}
 	}
 	
 	/**
@@ -144,12 +230,15 @@ public class ImpersonationAuthClient {
 		boolean success = false;
 		if (localAuthConfig != null) {
 			
+			cancelRefresh(tokenUsername);
+			
+			// deny the token locally right away, even if the server call fails
+			JWTClient.revoke(localAuthConfig.getAccessToken(), localAuthConfig.getExpiresAt() == null ? null :
+					Date.from(localAuthConfig.getExpiresAt().atZone(ZoneId.systemDefault()).toInstant()));
+			
 			try {
-				final CustomGrantTypeOAuth20Service service = 
-						(CustomGrantTypeOAuth20Service) new ServiceBuilder()
-					        .apiKey(localAuthConfig.getApiKey())
-					        .apiSecret(localAuthConfig.getApiSecret())
-					        .build(AgaveApi.instance());
+				final CustomGrantTypeOAuth20Service service = OAuthServiceRegistry.get(
+						getTenant().getBaseUrl(), localAuthConfig.getApiKey(), localAuthConfig.getApiSecret());
 		
 				service.revokeAccessToken(localAuthConfig.getAccessToken());
 				success = true;
@@ -166,6 +255,7 @@ public class ImpersonationAuthClient {
 				clientsApi.getApiClient().setPassword(Settings.SERVICE_ACCOUNT_PASSWORD);
 				
 				clientsApi.deleteClient(getCacheManager().getCacheName() + "/" + tokenUsername);
+				OAuthServiceRegistry.remove(getTenant().getBaseUrl(), localAuthConfig.getApiKey());
 				
 				success = true;
 			}
@@ -200,84 +290,131 @@ public class ImpersonationAuthClient {
 	protected OAuth2AccessToken _getToken(Client client, String tokenUsername, String serviceUsername, String servicePassword) 
 	throws ApiException, IOException, InterruptedException, ExecutionException 
 	{
-		final CustomGrantTypeOAuth20Service service = (CustomGrantTypeOAuth20Service) new ServiceBuilder()
-	        .apiKey(client.getKey())
-	        .apiSecret(client.getSecret())
-	        .build(AgaveApi.instance());
+		final CustomGrantTypeOAuth20Service service = OAuthServiceRegistry.get(
+				getTenant().getBaseUrl(), client.getKey(), client.getSecret());
 	
 		return service.getAccessTokenAdminPasswordGrant(serviceUsername, servicePassword, tokenUsername);
 	}
 	
 	/**
-	 * Makes the call to get a new auth token using the existing token in the 
-	 * {@link LocalAgaveAuthConfig}.
-	 *  
-	 * @param localAuthConfig the current {@link LocalAgaveAuthConfig} for 
-	 * the user containing client info and refresh token to carry out this action.
-	 * @return valid {@link OAuth2AccessToken} for the {@code LocalAgaveAuthConfig#username}
-	 * @throws ApiException
-	 * @throws IOException
-	 * @throws InterruptedException
-	 * @throws ExecutionException
+	 * Receives the outcome of each user in a call to
+	 * {@link ImpersonationAuthClient#getTokens(Collection, int, Executor, TokenListener)}.
+	 * Implementations must be thread safe.
 	 */
-	protected OAuth2AccessToken _refreshToken(LocalAgaveAuthConfig localAuthConfig) 
-	throws ApiException, IOException, InterruptedException, ExecutionException 
-	{
-		final OAuth20Service service = new ServiceBuilder()
-	        .apiKey(localAuthConfig.getApiKey())
-	        .apiSecret(localAuthConfig.getApiSecret())
-	        .build(AgaveApi.instance());
-	
-		return service.refreshAccessToken(localAuthConfig.getRefreshToken());
-	}
-	
-	public MultitenantCacheManager getCacheManager() {
-		if (this.cacheManager == null) {
-			this.cacheManager = new MultitenantCacheManager(getTenant(), getClientApplicationId());
-		}
+	public interface TokenListener {
+		
+		/**
+		 * @param tokenUsername the user
+		 * @param localAuthConfig the user's token
+		 */
+		void onToken(String tokenUsername, LocalAgaveAuthConfig localAuthConfig);
 		
-		return this.cacheManager;
+		/**
+		 * @param tokenUsername the user
+		 * @param error why no token could be fetched for the user
+		 */
+		void onFailure(String tokenUsername, Throwable error);
 	}
-
+	
 	/**
-	 * @return the cache for the 
+	 * A bulk token request in progress. Keeps at most {@code parallelism} 
+	 * users in flight, starting the next pending user as each one finishes.
 	 */
-	public Cache<String, LocalAgaveAuthConfig> getCache() 
-	throws CacheException 
-	{
-		if (this.cache == null) {
-			this.cache = cacheManager.getUserTokenCacheForClientApplication();
+	private class BulkTokenRequest {
+		
+		final CompletableFuture<Map<String, Throwable>> result = new CompletableFuture<Map<String, Throwable>>();
+		
+		private final Iterator<String> pending;
+		private final int parallelism;
+		private final Executor executor;
+		private final TokenListener listener;
+		private final Map<String, Throwable> failures = new ConcurrentHashMap<String, Throwable>();
+		private int active;
+		
+		BulkTokenRequest(Collection<String> tokenUsernames, int parallelism, Executor executor, TokenListener listener) {
+			this.pending = new LinkedHashSet<String>(tokenUsernames).iterator();
+			this.parallelism = parallelism;
+			this.executor = executor;
+			this.listener = listener;
 		}
 		
-		return this.cache;
-	}
-
-	/**
-	 * @return the tenant
-	 */
-	public Tenant getTenant() {
-		return tenant;
-	}
-
-	/**
-	 * @param tenant the tenant to set
-	 */
-	public void setTenant(Tenant tenant) {
-		this.tenant = tenant;
-	}
-
-	/**
-	 * @return the clientApplicationId
-	 */
-	public String getClientApplicationId() {
-		return clientApplicationId;
-	}
-
-	/**
-	 * @param clientApplicationId the clientApplicationId to set
-	 */
-	public void setClientApplicationId(String clientApplicationId) {
-		this.clientApplicationId = clientApplicationId;
+		/**
+		 * Starts pending users until the batch is full. Users whose token
+		 * was already cached complete immediately and are reported inline,
+		 * keeping the stack flat however many cached users are in a row.
+		 */
+		void fill() {
+			while (true) {
+				final String tokenUsername;
+				synchronized (this) {
+					if (active >= parallelism) {
+						return;
+					}
+					if (result.isDone() || !pending.hasNext()) {
+						if (active == 0) {
+							result.complete(failures);
+						}
+						return;
+					}
+					tokenUsername = pending.next();
+					active++;
+				}
+				
+				CompletableFuture<LocalAgaveAuthConfig> future;
+				try {
+					future = getTokenAsync(tokenUsername, executor);
+				}
+				catch (RuntimeException e) {
+					future = new CompletableFuture<LocalAgaveAuthConfig>();
+					future.completeExceptionally(e);
+				}
+				
+				if (future.isDone()) {
+					report(tokenUsername, future);
+					continue;
+				}
+				
+				final CompletableFuture<LocalAgaveAuthConfig> inFlight = future;
+				inFlight.whenComplete(new BiConsumer<LocalAgaveAuthConfig, Throwable>() {
+					@Override
+					public void accept(LocalAgaveAuthConfig localAuthConfig, Throwable error) {
+						report(tokenUsername, inFlight);
+						fill();
+					}
+				});
+			}
+		}
+		
+		/**
+		 * Hands the user's outcome to the listener and frees its slot. A
+		 * listener failing does not stop the batch.
+		 */
+		private void report(String tokenUsername, CompletableFuture<LocalAgaveAuthConfig> future) {
+			try {
+				LocalAgaveAuthConfig localAuthConfig = null;
+				Throwable error = null;
+				try {
+					localAuthConfig = future.join();
+				}
+				catch (CompletionException | CancellationException e) {
+					error = Futures.unwrap(e);
+				}
+				
+				if (error == null) {
+					listener.onToken(tokenUsername, localAuthConfig);
+				} else {
+					failures.put(tokenUsername, error);
+					listener.onFailure(tokenUsername, error);
+				}
+			}
+			catch (RuntimeException e) {
+				logger.log(Level.WARNING, "Token listener failed for user " + tokenUsername, e);
+			}
+			finally {
+				synchronized (this) {
+					active--;
+				}
+			}
+		}
 	}
-
 }
@@ -0,0 +1,240 @@
+/**
+ *
+ */
+package org.agave.client.auth;
+
+import java.util.Collection;
+
+import org.agave.client.common.guava.Ascii;
+
+/**
+ * Framework neutral authentication of a request carrying an Agave JWT in an
+ * {@code x-jwt-assertion-<tenant>} header. The request headers are scanned
+ * once through a {@link HeaderAccessor}. Header names are matched by folding
+ * ASCII case character by character against a precomputed table of tenant
+ * header suffixes, so locating the token and its tenant allocates nothing.
+ * The token is then run through {@link JWTClient#validate(String, String)}
+ * and, if valid, installed as the thread's {@link AuthContext}.
+ *
+ * If the request also carries an {@code Authorization: Bearer} token which
+ * this process revoked, the request is rejected even if the JWT is valid.
+ *
+ * Instances are thread safe and meant to be shared by every request.
+ *
+ * @author dooley
+ *
+ */
+public final class JWTAuthenticator<R> {
+
+	private static final String JWT_HEADER_PREFIX = "x-jwt-assertion-";
+	private static final String AUTHORIZATION_HEADER = "authorization";
+	private static final String BEARER_PREFIX = "bearer ";
+
+	/**
+	 * Upper bound on tenants learned from request headers rather than
+	 * configured up front.
+	 */
+	private static final int MAX_TENANTS = 256;
+
+	/**
+	 * Read access to the headers of a request. Index based so adapters over
+	 * arrays or lists need not allocate an iterator per request.
+	 */
+	public interface HeaderAccessor<R> {
+
+		/**
+		 * @return the number of headers in the request
+		 */
+		int getHeaderCount(R request);
+
+		/**
+		 * @return the name of the header at {@code index}, in any case
+		 */
+		CharSequence getHeaderName(R request, int index);
+
+		/**
+		 * @return the value of the header at {@code index}
+		 */
+		String getHeaderValue(R request, int index);
+	}
+
+	private final HeaderAccessor<R> headers;
+	private volatile TenantTable tenants;
+
+	/**
+	 * @param headers reads the headers of a request
+	 * @param tenantIds the tenants whose headers to recognize up front.
+	 * Other tenants are learned the first time one of their tokens verifies.
+	 */
+	public JWTAuthenticator(HeaderAccessor<R> headers, Collection<String> tenantIds) {
+		this.headers = headers;
+		this.tenants = TenantTable.EMPTY;
+		for (String tenantId: tenantIds) {
+			learn(tenantId);
+		}
+	}
+
+	/**
+	 * Locates the JWT in the request, verifies it for the tenant named by
+	 * its header, and on success binds it to the current thread as its
+	 * {@link AuthContext}. Callers on pooled threads should
+	 * {@link AuthContext#clear() clear} the context when the request ends.
+	 *
+	 * @param request the request to authenticate
+	 * @return the verified claims or the reason the request was rejected
+	 */
+	public JWTVerificationResult authenticate(R request) {
+		String token = null;
+		String tenantId = null;
+		String bearerToken = null;
+		boolean guessedTenant = false;
+
+		int count = headers.getHeaderCount(request);
+		for (int i = 0; i < count; i++) {
+			CharSequence name = headers.getHeaderName(request, i);
+			if (token == null && startsWithIgnoreCase(name, JWT_HEADER_PREFIX)) {
+				token = headers.getHeaderValue(request, i);
+				tenantId = tenants.get(name, JWT_HEADER_PREFIX.length());
+				if (tenantId == null) {
+					tenantId = toTenantId(name, JWT_HEADER_PREFIX.length());
+					guessedTenant = true;
+				}
+			}
+			else if (bearerToken == null && name.length() == AUTHORIZATION_HEADER.length()
+					&& startsWithIgnoreCase(name, AUTHORIZATION_HEADER)) {
+				String value = headers.getHeaderValue(request, i);
+				if (value != null && startsWithIgnoreCase(value, BEARER_PREFIX)) {
+					bearerToken = value;
+				}
+			}
+		}
+
+		if (token == null) {
+			return JWTVerificationResult.rejected(null, JWTRejectionReason.NO_TOKEN);
+		}
+		if (bearerToken != null && JWTClient.isRevoked(bearerToken, BEARER_PREFIX.length())) {
+			return JWTVerificationResult.rejected(token, JWTRejectionReason.REVOKED);
+		}
+
+		JWTVerificationResult result = JWTClient.validate(token, tenantId);
+		if (result.isValid()) {
+			AuthContext.setCurrent(result.getContext());
+			// tenants found in the table need no further work
+			if (guessedTenant) {
+				learn(tenantId);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Adds the tenant to the header table. Copy on write, since tenants are
+	 * added rarely and read on every request.
+	 */
+	private synchronized void learn(String tenantId) {
+		if (tenantId == null || tenants.size() >= MAX_TENANTS) return;
+		tenants = tenants.with(headerSuffix(tenantId), tenantId);
+	}
+
+	/**
+	 * @return the header suffix of the tenant, as in {@link JWTClient#getJwtHeaderKeyForTenant(String)}
+	 */
+	private static String headerSuffix(String tenantId) {
+		return Ascii.toLowerCase(tenantId.replace('.', '-'));
+	}
+
+	/**
+	 * Guesses the tenant of a header not in the table by reversing the
+	 * header naming. Only used until the tenant's first token verifies.
+	 */
+	private static String toTenantId(CharSequence name, int offset) {
+		return Ascii.toLowerCase(name.subSequence(offset, name.length()).toString()).replace('-', '.');
+	}
+
+	private static boolean startsWithIgnoreCase(CharSequence value, String lowerCasePrefix) {
+		int length = lowerCasePrefix.length();
+		if (value.length() < length) return false;
+		for (int i = 0; i < length; i++) {
+			if (Ascii.toLowerCase(value.charAt(i)) != lowerCasePrefix.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Immutable open addressing table from lowercase header suffix to tenant
+	 * id. Lookups hash and compare the suffix in place, folding case as they
+	 * go, so no substring or lowercase copy of the header name is made.
+	 */
+	private static final class TenantTable {
+
+		static final TenantTable EMPTY = new TenantTable(new String[0], new String[0], 0);
+
+		private final String[] suffixes;
+		private final String[] tenantIds;
+		private final int size;
+
+		private TenantTable(String[] suffixes, String[] tenantIds, int size) {
+			this.suffixes = suffixes;
+			this.tenantIds = tenantIds;
+			this.size = size;
+		}
+
+		int size() {
+			return size;
+		}
+
+		String get(CharSequence name, int offset) {
+			if (size == 0) return null;
+
+			int mask = suffixes.length - 1;
+			for (int slot = hash(name, offset) & mask; suffixes[slot] != null; slot = (slot + 1) & mask) {
+				if (matches(suffixes[slot], name, offset)) {
+					return tenantIds[slot];
+				}
+			}
+			return null;
+		}
+
+		TenantTable with(String suffix, String tenantId) {
+			if (get(suffix, 0) != null) return this;
+
+			// keep the load factor at or under one half
+			int capacity = Integer.highestOneBit(Math.max(4, (size + 1) * 2) - 1) << 1;
+			String[] newSuffixes = new String[capacity];
+			String[] newTenantIds = new String[capacity];
+			for (int i = 0; i < suffixes.length; i++) {
+				if (suffixes[i] != null) {
+					insert(newSuffixes, newTenantIds, suffixes[i], tenantIds[i]);
+				}
+			}
+			insert(newSuffixes, newTenantIds, suffix, tenantId);
+			return new TenantTable(newSuffixes, newTenantIds, size + 1);
+		}
+
+		private static void insert(String[] suffixes, String[] tenantIds, String suffix, String tenantId) {
+			int mask = suffixes.length - 1;
+			int slot = hash(suffix, 0) & mask;
+			while (suffixes[slot] != null) {
+				slot = (slot + 1) & mask;
+			}
+			suffixes[slot] = suffix;
+			tenantIds[slot] = tenantId;
+		}
+
+		private static int hash(CharSequence name, int offset) {
+			int h = 0;
+			for (int i = offset; i < name.length(); i++) {
+				h = 31 * h + Ascii.toLowerCase(name.charAt(i));
+			}
+			return h ^ (h >>> 16);
+		}
+
+		private static boolean matches(String suffix, CharSequence name, int offset) {
+			if (suffix.length() != name.length() - offset) return false;
+			for (int i = 0; i < suffix.length(); i++) {
+				if (suffix.charAt(i) != Ascii.toLowerCase(name.charAt(offset + i))) return false;
+			}
+			return true;
+		}
+	}
+}
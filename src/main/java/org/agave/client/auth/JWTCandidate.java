@@ -0,0 +1,157 @@
+/**
+ *
+ */
+package org.agave.client.auth;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+
+import com.nimbusds.jwt.SignedJWT;
+
+/**
+ * A token passing through a {@link JWTValidationPipeline}. The token is
+ * only parsed when a validator first asks for its structure or claims, so
+ * validators which look at the raw token run before any decoding. Claims of
+ * a token which has already been verified come from the verified token
+ * cache, otherwise they are read, unverified, from the token itself until
+ * the signature check passes. Tokens read off the wire keep their bytes,
+ * which are decoded in place by the thread's {@link CompactJWTParser}.
+ *
+ * Candidates are not thread safe and live for a single validation.
+ *
+ * @author dooley
+ *
+ */
+public final class JWTCandidate {
+
+	private final String serializedToken;
+	private final ByteBuffer serializedBytes;
+	private final String tenantId;
+	private final VerifiedTokenCache verifiedTokens;
+
+	private VerifiedTokenCache.TokenDigest digest;
+	private SignedJWT signedJWT;
+	private AgaveClaims claims;
+	private boolean parsed;
+	private boolean claimsResolved;
+	private boolean signatureVerified;
+
+	JWTCandidate(String serializedToken, String tenantId, VerifiedTokenCache verifiedTokens) {
+		this(null, serializedToken, tenantId, verifiedTokens);
+	}
+
+	JWTCandidate(ByteBuffer serializedBytes, String serializedToken, String tenantId, VerifiedTokenCache verifiedTokens) {
+		this.serializedBytes = serializedBytes;
+		this.serializedToken = serializedToken;
+		this.tenantId = tenantId;
+		this.verifiedTokens = verifiedTokens;
+	}
+
+	/**
+	 * @return the compact serialized token as received
+	 */
+	public String getSerializedToken() {
+		return serializedToken;
+	}
+
+	/**
+	 * @return the buffer the token was read from, or null if it was
+	 * received as a string. The buffer position is never changed.
+	 */
+	ByteBuffer getSerializedBytes() {
+		return serializedBytes;
+	}
+
+	/**
+	 * @return the tenant the token was received for
+	 */
+	public String getTenantId() {
+		return tenantId;
+	}
+
+	/**
+	 * Computes the key of the token in the verified token cache once, so
+	 * the cache lookup and the signature check share it.
+	 *
+	 * @return the cache key, or null if the verified token cache is disabled
+	 */
+	VerifiedTokenCache.TokenDigest getDigest() {
+		if (digest == null && verifiedTokens != null && verifiedTokens.isEnabled() && tenantId != null) {
+			digest = serializedBytes != null ?
+					VerifiedTokenCache.TokenDigest.of(tenantId, serializedBytes) :
+					VerifiedTokenCache.TokenDigest.of(tenantId, serializedToken);
+		}
+		return digest;
+	}
+
+	/**
+	 * @return the parsed token, or null if it is not a well formed signed JWT
+	 */
+	public SignedJWT getSignedJWT() {
+		if (!parsed) {
+			parsed = true;
+			try {
+				signedJWT = SignedJWT.parse(serializedToken);
+			} catch (ParseException e) {
+				signedJWT = null;
+			}
+		}
+		return signedJWT;
+	}
+
+	/**
+	 * Returns the claims of the token. Until {@link #isSignatureVerified()}
+	 * is true these have not been checked against the tenant key and must
+	 * only be used to reject the token, never to trust it.
+	 *
+	 * @return the claims, or null if the token cannot be parsed
+	 */
+	public AgaveClaims getClaims() {
+		if (!claimsResolved) {
+			claimsResolved = true;
+
+			VerifiedTokenCache.TokenDigest key = getDigest();
+			if (key != null) {
+				AgaveClaims verified = verifiedTokens.getIfPresent(key);
+				if (verified != null) {
+					setVerifiedClaims(verified);
+					return claims;
+				}
+			}
+
+			if (serializedBytes != null) {
+				try {
+					claims = AgaveClaims.fromClaimsSet(
+							CompactJWTParser.get().parse(serializedBytes).getJWTClaimsSet(), tenantId);
+				} catch (ParseException e) {
+					claims = null;
+				}
+				return claims;
+			}
+
+			SignedJWT jwt = getSignedJWT();
+			if (jwt != null) {
+				try {
+					claims = AgaveClaims.fromClaimsSet(jwt.getJWTClaimsSet(), tenantId);
+				} catch (ParseException e) {
+					claims = null;
+				}
+			}
+		}
+		return claims;
+	}
+
+	/**
+	 * @return true once the token signature has been checked against the
+	 * tenant key, either by this validation or an earlier one
+	 */
+	public boolean isSignatureVerified() {
+		return signatureVerified;
+	}
+
+	void setVerifiedClaims(AgaveClaims verifiedClaims) {
+		this.claims = verifiedClaims;
+		this.claimsResolved = true;
+		this.signatureVerified = true;
+	}
+}
@@ -4,25 +4,41 @@
 package org.agave.client.auth;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.NoSuchProviderException;
-import java.security.Security;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.security.interfaces.RSAPublicKey;
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
 
 import net.minidev.json.JSONObject;
 
-import org.agave.client.ApiException;
 import org.agave.client.Settings;
 import org.agave.client.api.TenantsApi;
+import org.agave.client.common.AuthSettings;
+import org.agave.client.common.DaemonThreadFactory;
 import org.agave.client.common.HTTPSClient;
 import org.agave.client.exceptions.TenantException;
 import org.agave.client.model.Tenant;
@@ -31,11 +47,7 @@ import org.apache.http.util.Asserts;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.nimbusds.jose.JWSAlgorithm;
 import com.nimbusds.jose.JWSVerifier;
-import com.nimbusds.jose.Requirement;
-import com.nimbusds.jose.crypto.RSASSAVerifier;
-import com.nimbusds.jwt.ReadOnlyJWTClaimsSet;
 import com.nimbusds.jwt.SignedJWT;
 
 /**
@@ -45,29 +57,63 @@ import com.nimbusds.jwt.SignedJWT;
 public class JWTClient 
 {
 	private static final Logger log = LoggerFactory.getLogger(JWTClient.class);
-	private static final ThreadLocal<JSONObject> threadJWTPayload = new ThreadLocal<JSONObject>();
-	private static final ThreadLocal<String> threadRawJWT = new ThreadLocal<String>();
-	private static final ConcurrentHashMap<String, RSAPublicKey> tenantPublicKeys = new ConcurrentHashMap<String, RSAPublicKey>();
 	
-	private static String getTenantPublicKeyUrl(String tenantId) throws TenantException {
-		Tenant tenant = null;
-		try {
-			tenant = new TenantsApi().getTenantDetails(tenantId, false, null);
-			
-			if (tenant != null) {
-				return StringUtils.removeEnd(tenant.getBaseUrl(), "/") + "/apim/v2/publickey";
-			}
-			else {
-				throw new TenantException("No tenant found for id " + tenantId);
-			}
+	/**
+	 * How long a revoked token of unknown expiration is denied, in milliseconds.
+	 */
+	private static final long DEFAULT_REVOCATION_RETENTION = 24 * 60 * 60 * 1000;
+	
+	private static final TenantDirectory tenantDirectory = new TenantDirectory(new TenantDirectory.TenantLookup() {
+		@Override
+		public Tenant lookup(String tenantId) throws Exception {
+			return new TenantsApi().getTenantDetails(tenantId, false, null);
 		}
-		catch (TenantException e) {
-			throw e;
+	});
+	private static final TenantPublicKeyCache tenantPublicKeys = new TenantPublicKeyCache(new TenantPublicKeyCache.KeyLoader() {
+		@Override
+		public RSAPublicKey load(String tenantId) throws TenantException {
+			return fetchTenantPublicKey(tenantId);
 		}
-		catch (Exception e) {
-			throw new TenantException("Failed to find tenant with given id",e);
+	});
+	private static final VerifiedTokenCache verifiedTokens = new VerifiedTokenCache(AuthSettings.JWT_VERIFIED_CACHE_SIZE);
+	private static final RevocationList revokedTokens = new RevocationList(AuthSettings.JWT_REVOCATION_CAPACITY);
+	private static final TenantKeySnapshot keySnapshot = StringUtils.isEmpty(AuthSettings.JWT_KEY_SNAPSHOT_FILE) ? 
+			null : new TenantKeySnapshot(new File(AuthSettings.JWT_KEY_SNAPSHOT_FILE));
+	
+	static {
+		loadLocalTenantPublicKeys();
+	}
+	
+	/**
+	 * Validation run by {@link #parse(String, String)} and {@link #verifyAll(Collection, String)}.
+	 */
+	private static volatile JWTValidationPipeline validationPipeline = JWTValidationPipeline.defaults();
+	
+	/**
+	 * Signature check run by {@link JWTValidators#signature()} when a token
+	 * read straight off the wire is not already in the {@link #verifiedTokens}
+	 * cache. Parses in place with the thread's {@link CompactJWTParser}.
+	 */
+	private static final VerifiedTokenCache.TokenVerifier<ByteBuffer> BYTE_SIGNATURE_VERIFIER = new VerifiedTokenCache.TokenVerifier<ByteBuffer>() {
+		@Override
+		public AgaveClaims verify(ByteBuffer serializedToken, String tenantId) throws Exception {
+			CompactJWTParser parser = CompactJWTParser.get().parse(serializedToken);
+			
+			RSAPublicKey publicKey = getTenantPublicKey(tenantId);
+			if (!parser.verify(publicKey)) {
+				// the tenant may have rotated its key since we cached it
+				RSAPublicKey refreshedKey = tenantPublicKeys.refreshAfterSignatureFailure(tenantId, publicKey);
+				if (refreshedKey == null || !parser.verify(refreshedKey)) {
+					return null;
+				}
+			}
+			
+			return AgaveClaims.fromClaimsSet(parser.getJWTClaimsSet(), tenantId);
 		}
-		
+	};
+	
+	private static String getTenantPublicKeyUrl(String tenantId) throws TenantException {
+		return tenantDirectory.get(tenantId).getPublicKeyUrl();
 	}
 			
 	private static InputStream getTenantPublicKeyInputStream(String tenantId) 
@@ -93,70 +139,203 @@ public class JWTClient
 	
 	/**
 	 * Fetches the {@link RSAPublicKey} for the given tenant for use in
-	 * verifying the JWT signature.
+	 * verifying the JWT signature. Keys are cached after the first fetch.
+	 * Concurrent callers missing on the same tenant share a single fetch.
 	 * 
 	 * @param tenantId
 	 * @return
 	 * @throws IOException 
 	 * @throws FileNotFoundException 
-	 * @throws NoSuchProviderException 
 	 * @throws Exception
 	 */
 	public static RSAPublicKey getTenantPublicKey(String tenantId)
 	throws CertificateException, IOException, TenantException 
 	{
-		RSAPublicKey tenantPublicKey = tenantPublicKeys.get(tenantId);
-		if (tenantPublicKey == null) 
-		{	
-			log.debug("Public key for tenant " + tenantId + " not found in the "
-					+ "service cache. Fetching now...");
-			InputStream is = null;
-			try 
-			{
-				Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
-				
-				CertificateFactory cf = CertificateFactory.getInstance("X509", "BC");
-				is = getTenantPublicKeyInputStream(tenantId);
-				X509Certificate certificate = (X509Certificate) cf.generateCertificate(is);
-				tenantPublicKey = (RSAPublicKey)certificate.getPublicKey();
-				tenantPublicKeys.put(tenantId,  tenantPublicKey);
-			} 
-			catch (NoSuchProviderException e) {
-				throw new TenantException("Unable to load public key for tenant " + tenantId 
-						+ ". No security provider found to handle the key type.", e);
+		return tenantPublicKeys.get(tenantId);
+	}
+	
+	/**
+	 * Resolves the details, public key url and public key of every tenant in
+	 * parallel so the first requests for each tenant verify without waiting
+	 * on the network. At most {@link AuthSettings#JWT_PREWARM_CONCURRENCY}
+	 * tenants are fetched at once. Blocks until every tenant is ready or 
+	 * has failed, which makes it suitable for gating a readiness probe.
+	 * 
+	 * @param tenantIds the tenants to warm
+	 * @return one result per tenant, in iteration order of {@code tenantIds}
+	 */
+	public static List<TenantPrewarmResult> prewarm(Collection<String> tenantIds)
+	{
+		final String[] tenants = tenantIds.toArray(new String[tenantIds.size()]);
+		TenantPrewarmResult[] results = new TenantPrewarmResult[tenants.length];
+		if (tenants.length == 0) {
+			return Arrays.asList(results);
+		}
+		
+		long start = System.nanoTime();
+		int concurrency = Math.max(1, Math.min(tenants.length, AuthSettings.JWT_PREWARM_CONCURRENCY));
+		ExecutorService pool = Executors.newFixedThreadPool(concurrency, new DaemonThreadFactory("tenant-prewarm"));
+		try {
+			List<Future<TenantPrewarmResult>> futures = new ArrayList<Future<TenantPrewarmResult>>(tenants.length);
+			for (final String tenantId: tenants) {
+				futures.add(pool.submit(new Callable<TenantPrewarmResult>() {
+					@Override
+					public TenantPrewarmResult call() {
+						long tenantStart = System.nanoTime();
+						try {
+							getTenantPublicKey(tenantId);
+							return TenantPrewarmResult.ready(tenantId, elapsedMillis(tenantStart));
+						}
+						catch (Throwable e) {
+							return TenantPrewarmResult.failed(tenantId, elapsedMillis(tenantStart), e);
+						}
+					}
+				}));
+			}
+			
+			for (int i = 0; i < tenants.length; i++) {
+				try {
+					results[i] = futures.get(i).get();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					for (int j = i; j < tenants.length; j++) {
+						results[j] = TenantPrewarmResult.failed(tenants[j], elapsedMillis(start), e);
+					}
+					break;
+				}
+				catch (ExecutionException e) {
+					results[i] = TenantPrewarmResult.failed(tenants[i], elapsedMillis(start), e.getCause());
+				}
 			}
-			catch (FileNotFoundException e) {
-				throw new TenantException("Unable to locate public key for tenant " + tenantId 
-						+ " at " + getTenantPublicKeyUrl(tenantId), e);
+		}
+		finally {
+			pool.shutdownNow();
+		}
+		
+		int failed = 0;
+		for (TenantPrewarmResult result: results) {
+			if (!result.isReady()) {
+				failed++;
+				log.warn("Failed to prewarm public key for tenant " + result.getTenantId() 
+						+ " after " + result.getElapsedMillis() + "ms", result.getError());
+			} else {
+				log.debug("Prewarmed public key for tenant " + result);
 			}
-			catch (IOException e) {
-				throw new TenantException("Unable to fetch public key for tenant " + tenantId 
-						+  " from " + getTenantPublicKeyUrl(tenantId), e);
+		}
+		log.info("Prewarmed " + (tenants.length - failed) + " of " + tenants.length + " tenant public keys in " 
+				+ elapsedMillis(start) + "ms");
+		
+		return Arrays.asList(results);
+	}
+	
+	private static long elapsedMillis(long startNanos)
+	{
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+	}
+	
+	/**
+	 * Trusts the given key for the tenant. Registered keys take precedence
+	 * over fetched ones and are never refreshed, so tokens of the tenant
+	 * verify without any network call.
+	 * 
+	 * @param tenantId the tenant owning the key
+	 * @param publicKey the tenant public key
+	 */
+	public static void registerTenantPublicKey(String tenantId, RSAPublicKey publicKey)
+	{
+		Asserts.notNull(tenantId, "Tenant id cannot be null");
+		Asserts.notNull(publicKey, "Public key cannot be null");
+		tenantPublicKeys.pin(tenantId, publicKey);
+	}
+	
+	/**
+	 * Seeds the key cache from the keys pinned in {@link AuthSettings#JWT_PINNED_KEYS}
+	 * and the snapshot in {@link AuthSettings#JWT_KEY_SNAPSHOT_FILE}. Snapshot
+	 * keys keep their original fetch time, so stale ones are refreshed in the
+	 * background on first use while still verifying tokens in the meantime.
+	 */
+	private static void loadLocalTenantPublicKeys()
+	{
+		if (keySnapshot != null) {
+			Map<String, TenantKeySnapshot.Entry> snapshot = keySnapshot.read();
+			for (Map.Entry<String, TenantKeySnapshot.Entry> entry: snapshot.entrySet()) {
+				tenantPublicKeys.put(entry.getKey(), entry.getValue().key, entry.getValue().fetchedAt);
 			}
-			catch (CertificateException e) {
-				throw new TenantException("Unable to parse public key for tenant " + tenantId 
-						+  " from " + getTenantPublicKeyUrl(tenantId), e);
+			log.debug("Loaded " + snapshot.size() + " tenant public keys from " + AuthSettings.JWT_KEY_SNAPSHOT_FILE);
+		}
+		
+		for (String pin: StringUtils.split(StringUtils.defaultString(AuthSettings.JWT_PINNED_KEYS), ',')) {
+			String tenantId = StringUtils.trimToNull(StringUtils.substringBefore(pin, "="));
+			String path = StringUtils.trimToNull(StringUtils.substringAfter(pin, "="));
+			try {
+				if (tenantId == null || path == null) {
+					throw new IllegalArgumentException("expected tenantId=path");
+				}
+				registerTenantPublicKey(tenantId, TenantKeySnapshot.toPublicKey(Files.readAllBytes(Paths.get(path))));
 			}
 			catch (Exception e) {
-				throw new TenantException("Unable to load public key for tenant " + tenantId 
-						+ ". Unexpected error occurred.", e);
+				log.error("Unable to load pinned public key \"" + pin + "\". Ignoring it.", e);
 			}
-			finally {
-				try { is.close(); } catch (Exception e) {}
+		}
+	}
+	
+	/**
+	 * Asynchronous version of {@link #getTenantPublicKey(String)}. Fetches
+	 * run on background threads and are shared with any synchronous or 
+	 * asynchronous caller already waiting on the same tenant.
+	 * 
+	 * @param tenantId
+	 * @return a future completing with the tenant public key or a {@link TenantException}
+	 */
+	public static CompletableFuture<RSAPublicKey> getTenantPublicKeyAsync(String tenantId)
+	{
+		return tenantPublicKeys.getAsync(tenantId);
+	}
+	
+	/**
+	 * Fetches and parses the public key certificate of the tenant from the
+	 * tenant's API Manager.
+	 */
+	private static RSAPublicKey fetchTenantPublicKey(String tenantId)
+	throws TenantException 
+	{
+		log.debug("Public key for tenant " + tenantId + " not found in the "
+				+ "service cache. Fetching now...");
+		InputStream is = null;
+		try 
+		{
+			CertificateFactory cf = CryptoBootstrap.newCertificateFactory();
+			is = getTenantPublicKeyInputStream(tenantId);
+			X509Certificate certificate = (X509Certificate) cf.generateCertificate(is);
+			if (keySnapshot != null) {
+				keySnapshot.write(tenantId, certificate.getEncoded(), System.currentTimeMillis());
 			}
+			return (RSAPublicKey)certificate.getPublicKey();
+		} 
+		catch (FileNotFoundException e) {
+			throw new TenantException("Unable to locate public key for tenant " + tenantId 
+					+ " at " + getTenantPublicKeyUrl(tenantId), e);
+		}
+		catch (IOException e) {
+			throw new TenantException("Unable to fetch public key for tenant " + tenantId 
+					+  " from " + getTenantPublicKeyUrl(tenantId), e);
+		}
+		catch (CertificateException e) {
+			throw new TenantException("Unable to parse public key for tenant " + tenantId 
+					+  " from " + getTenantPublicKeyUrl(tenantId), e);
+		}
+		catch (Exception e) {
+			throw new TenantException("Unable to load public key for tenant " + tenantId 
+					+ ". Unexpected error occurred.", e);
+		}
+		finally {
+			try { is.close(); } catch (Exception e) {}
 		}
-		
-		return tenantPublicKey;
 	}
 	
 	public JSONObject decodeJwt(String serializedJWT, RSAPublicKey pubKey) throws Exception
 	{
-		// register the SHA256withRSA algorithm with nimbus and Java security so
-		// it will be recognized
-		RSASSAVerifier.SUPPORTED_ALGORITHMS.add(
-			new JWSAlgorithm("SHA256withRSA", Requirement.OPTIONAL));
-		Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
-			
 		// Parse the JWT into its constituent parts
 		SignedJWT jwt = SignedJWT.parse(serializedJWT);
 
@@ -171,78 +350,372 @@ public class JWTClient
 	}
 	
 	/**
-	 * Entry method to this class. Parses the JWT and optionally validates 
-	 * the signature against the known public key of the tenant auth server
-	 * if {@link Settings#VERIFY_JWT_SIGNATURE} is true.
+	 * Entry method to this class. Runs the JWT through the validation 
+	 * pipeline, which checks its shape, expiry, tenant and claims before 
+	 * validating the signature against the known public key of the tenant
+	 * auth server. On success the token is bound to the current thread as its
+	 * {@link AuthContext}, which stays in place until replaced or 
+	 * {@link AuthContext#clear() cleared}.
 	 * @param serializedToken
 	 * @param tenantId
 	 * @return
 	 */
 	public static boolean parse(String serializedToken, String tenantId)
 	{
-		if (tenantId == null) return false;
+		if (tenantId == null || serializedToken == null) return false;
+		
+		return bind(validate(serializedToken, tenantId));
+	}
+	
+	/**
+	 * Same as {@link #parse(String, String)} for a token held in the remaining
+	 * bytes of the buffer, as read off the wire. The token runs through the 
+	 * same pipeline, so expired, foreign and incomplete tokens are rejected
+	 * before any signature check, but its claims are decoded and its 
+	 * signature verified in place without building intermediate strings. The
+	 * buffer position is not changed. The only copy made is the raw token
+	 * exposed through {@link #getCurrentRawJWT()} and checked against the
+	 * revocation list.
+	 * 
+	 * @param serializedToken buffer holding the compact serialized JWT
+	 * @param tenantId
+	 * @return true if the token is valid for the tenant
+	 */
+	public static boolean parse(ByteBuffer serializedToken, String tenantId)
+	{
+		if (tenantId == null || serializedToken == null) return false;
+		
+		// bound the work done for garbage before hashing or decoding anything
+		JWTRejectionReason rejection = JWTInputLimits.check(serializedToken);
+		if (rejection != null) {
+			logRejection(rejection, null);
+			return false;
+		}
 		
 		try 
 		{
-			// Create HMAC signer
-			SignedJWT signedJWT = SignedJWT.parse(serializedToken);
-			
-			if (signedJWT != null)
-			{
-				RSASSAVerifier.SUPPORTED_ALGORITHMS.add(new JWSAlgorithm("SHA256withRSA", Requirement.OPTIONAL));
-				
-				JWSVerifier verifier = new SHA256withRSAVerifier(getTenantPublicKey(tenantId));
-	            
-				if (!signedJWT.verify(verifier)) {
-					log.error("Invalid JWT signature.");	
-					return false; 
-				}
+			byte[] rawJWT = new byte[serializedToken.remaining()];
+			serializedToken.duplicate().get(rawJWT);
 			
-				ReadOnlyJWTClaimsSet claims = signedJWT.getJWTClaimsSet();
-				
-				Date expirationDate = claims.getExpirationTime();
-				
-				Asserts.notNull(expirationDate, 
-						"No expiration date in the JWT header. Authentication failed.");
-				
-				Asserts.check(expirationDate.after(new Date()), 
-						"JWT has expired. Authentication failed.");
-				
-				JSONObject json = claims.toJSONObject();
-				json.put("rawTenantId", tenantId); // unmodified tenant id
-				tenantId = StringUtils.lowerCase(tenantId);
-				tenantId = StringUtils.replaceChars(tenantId, '_', '.');
-				tenantId = StringUtils.replaceChars(tenantId, '-', '.');
-				json.put("tenantId", tenantId);
-//				log.debug(json.toJSONString());
-				setCurrentJWSObject(json);
-				
-				setCurrentRawJWT(serializedToken);
-				
-				Asserts.notNull(getCurrentEndUser(), 
-						"No end user specified in the JWT header. Authentication failed.");
-				
-				Asserts.notNull(getCurrentTenant(), 
-						"No tenant specified in the JWT header. Authentication failed.");
-				
-				Asserts.notNull(getCurrentSubscriber(), 
-						"No subscriber specified in the JWT header. Authentication failed.");
-				
-				return true;
+			JWTCandidate candidate = new JWTCandidate(serializedToken, 
+					new String(rawJWT, StandardCharsets.US_ASCII), tenantId, verifiedTokens);
+			return bind(validationPipeline.validate(candidate));
+		} 
+		catch (Throwable e) {
+			logParseFailure(e);
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Same as {@link #parse(ByteBuffer, String)} for a token in a range of
+	 * the given array.
+	 * 
+	 * @param serializedToken array holding the compact serialized JWT
+	 * @param offset start of the token in the array
+	 * @param length length of the token
+	 * @param tenantId
+	 * @return true if the token is valid for the tenant
+	 */
+	public static boolean parse(byte[] serializedToken, int offset, int length, String tenantId)
+	{
+		if (serializedToken == null) return false;
+		
+		return parse(ByteBuffer.wrap(serializedToken, offset, length), tenantId);
+	}
+	
+	/**
+	 * Runs the token through the validation pipeline without binding it to
+	 * the current thread.
+	 * 
+	 * @param serializedToken the compact serialized JWT
+	 * @param tenantId the tenant the token was received for
+	 * @return the verified claims or the reason the token was rejected
+	 */
+	public static JWTVerificationResult validate(String serializedToken, String tenantId)
+	{
+		try {
+			return validationPipeline.validate(new JWTCandidate(serializedToken, tenantId, verifiedTokens));
+		}
+		catch (Throwable e) {
+			logParseFailure(e);
+			return JWTVerificationResult.invalid(serializedToken, JWTRejectionReason.MALFORMED, e);
+		}
+	}
+	
+	/**
+	 * @return the pipeline run against every parsed token
+	 */
+	public static JWTValidationPipeline getValidationPipeline()
+	{
+		return validationPipeline;
+	}
+	
+	/**
+	 * Replaces the pipeline run against every parsed token. Custom pipelines
+	 * should keep {@link JWTValidators#signature()} as their last validator.
+	 * 
+	 * @param pipeline the new pipeline
+	 */
+	public static void setValidationPipeline(JWTValidationPipeline pipeline)
+	{
+		Asserts.notNull(pipeline, "Validation pipeline cannot be null");
+		validationPipeline = pipeline;
+	}
+	
+	/**
+	 * Binds a valid result to the current thread as its {@link AuthContext},
+	 * or logs why it was rejected.
+	 */
+	private static boolean bind(JWTVerificationResult result)
+	{
+		if (!result.isValid()) {
+			logRejection(result.getRejectionReason(), result.getError());
+			return false;
+		}
+		
+		AuthContext.setCurrent(result.getContext());
+		
+		return true;
+	}
+	
+	/**
+	 * Rejects the token locally until it expires, whether or not it was
+	 * revoked on the server. Accepts serialized JWT as well as opaque
+	 * OAuth access tokens, which callers may check with {@link #isRevoked(String)}.
+	 * 
+	 * @param token the serialized token
+	 * @param expiresAt when the token expires. If null, the expiration of
+	 * the JWT is used, or a day from now for tokens which are not JWT.
+	 */
+	public static void revoke(String token, Date expiresAt)
+	{
+		if (StringUtils.isEmpty(token)) return;
+		
+		if (expiresAt == null) {
+			try {
+				expiresAt = SignedJWT.parse(token).getJWTClaimsSet().getExpirationTime();
+			} catch (ParseException e) {
+				// not a JWT, fall through to the default below
+			}
+		}
+		
+		revokedTokens.revoke(token, expiresAt != null ? 
+				expiresAt.getTime() : System.currentTimeMillis() + DEFAULT_REVOCATION_RETENTION);
+	}
+	
+	/**
+	 * @param token the serialized token
+	 * @return true if the token was revoked by this process and has not
+	 * yet expired
+	 */
+	public static boolean isRevoked(String token)
+	{
+		return token != null && revokedTokens.isRevoked(token);
+	}
+	
+	/**
+	 * Same as {@link #isRevoked(String)} for a token starting at 
+	 * {@code offset} of a longer value, such as the token of an
+	 * {@code Authorization: Bearer} header. Whitespace around the token is
+	 * ignored, and the token is not copied out unless it might be revoked.
+	 * 
+	 * @param value the characters holding the serialized token
+	 * @param offset index of the start of the token in {@code value}
+	 * @return true if the token was revoked by this process and has not
+	 * yet expired
+	 */
+	public static boolean isRevoked(CharSequence value, int offset)
+	{
+		if (value == null) return false;
+		
+		int start = offset;
+		int end = value.length();
+		while (start < end && value.charAt(start) <= ' ') {
+			start++;
+		}
+		while (end > start && value.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		return revokedTokens.isRevoked(value, start, end);
+	}
+	
+	/**
+	 * Checks the signature of a candidate token against the tenant key, 
+	 * sharing the result through the {@link #verifiedTokens} cache. Backs
+	 * {@link JWTValidators#signature()}.
+	 */
+	static JWTRejectionReason verifySignature(final JWTCandidate candidate)
+	{
+		if (candidate.isSignatureVerified()) return null;
+		
+		try {
+			AgaveClaims claims;
+			if (candidate.getSerializedBytes() != null) {
+				claims = verifiedTokens.get(candidate.getDigest(), candidate.getSerializedBytes(), 
+						candidate.getTenantId(), BYTE_SIGNATURE_VERIFIER);
+			}
+			else {
+				claims = verifiedTokens.get(candidate.getDigest(), candidate.getSerializedToken(), candidate.getTenantId(), 
+						new VerifiedTokenCache.TokenVerifier<String>() {
+							@Override
+							public AgaveClaims verify(String serializedToken, String tenantId) throws Exception {
+								SignedJWT signedJWT = candidate.getSignedJWT();
+								if (signedJWT == null || !verifyWithTenantKey(signedJWT, tenantId)) {
+									return null;
+								}
+								return AgaveClaims.fromClaimsSet(signedJWT.getJWTClaimsSet(), tenantId);
+							}
+						});
 			}
 			
-		} 
+			if (claims == null) {
+				return JWTRejectionReason.INVALID_SIGNATURE;
+			}
+			candidate.setVerifiedClaims(claims);
+			return null;
+		}
 		catch (TenantException e) {
 			log.error("Failed to validate JWT object.", e);
+			return JWTRejectionReason.KEY_UNAVAILABLE;
+		}
+		catch (Exception e) {
+			logParseFailure(e);
+			return JWTRejectionReason.INVALID_SIGNATURE;
+		}
+	}
+	
+	/**
+	 * Verifies the signature against the tenant key, refetching the key once
+	 * in case the tenant rotated it since it was cached.
+	 */
+	private static boolean verifyWithTenantKey(SignedJWT signedJWT, String tenantId) 
+	throws Exception
+	{
+		RSAPublicKey publicKey = getTenantPublicKey(tenantId);
+		if (signedJWT.verify(new SHA256withRSAVerifier(publicKey))) {
+			return true;
+		}
+		
+		RSAPublicKey refreshedKey = tenantPublicKeys.refreshAfterSignatureFailure(tenantId, publicKey);
+		return refreshedKey != null && signedJWT.verify(new SHA256withRSAVerifier(refreshedKey));
+	}
+	
+	/**
+	 * @return the normalized id of the tenant if it has a cached key or is
+	 * known to the tenant service, null otherwise. Backs {@link JWTValidators#tenant()}.
+	 */
+	static String getKnownTenantId(String tenantId)
+	{
+		if (tenantId == null) return null;
+		if (tenantPublicKeys.getIfPresent(tenantId) != null) {
+			return AgaveClaims.normalizeTenantId(tenantId);
+		}
+		
+		try {
+			return tenantDirectory.get(tenantId).getNormalizedTenantId();
+		}
+		catch (TenantException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Validates a batch of tokens issued by the same tenant in parallel on 
+	 * the common {@link ForkJoinPool}. The tenant key is resolved before
+	 * the batch is split so every task finds it cached. Unlike 
+	 * {@link #parse(String, String)}, nothing is bound to the calling thread.
+	 * 
+	 * @param serializedTokens the compact serialized JWT to verify
+	 * @param tenantId the tenant which issued the tokens
+	 * @return one result per token, in iteration order of {@code serializedTokens}
+	 */
+	public static List<JWTVerificationResult> verifyAll(Collection<String> serializedTokens, String tenantId)
+	{
+		String[] tokens = serializedTokens.toArray(new String[serializedTokens.size()]);
+		JWTVerificationResult[] results = new JWTVerificationResult[tokens.length];
+		
+		try {
+			getTenantPublicKey(tenantId);
+		}
+		catch (Throwable e) {
+			log.error("Failed to resolve the public key for tenant " + tenantId + ". Rejecting all " 
+					+ tokens.length + " tokens in the batch.", e);
+			for (int i = 0; i < tokens.length; i++) {
+				results[i] = JWTVerificationResult.invalid(tokens[i], JWTRejectionReason.KEY_UNAVAILABLE, e);
+			}
+			return Arrays.asList(results);
+		}
+		
+		ForkJoinPool.commonPool().invoke(new BatchVerificationTask(tokens, results, 0, tokens.length, tenantId));
+		
+		return Arrays.asList(results);
+	}
+	
+	/**
+	 * Splits a batch of tokens in half until small enough to validate
+	 * sequentially, writing each result to its slot in the shared array.
+	 */
+	private static class BatchVerificationTask extends RecursiveAction 
+	{
+		private static final long serialVersionUID = 5839153315787411706L;
+		private static final int SEQUENTIAL_THRESHOLD = 8;
+		
+		private final String[] tokens;
+		private final JWTVerificationResult[] results;
+		private final int from;
+		private final int to;
+		private final String tenantId;
+		
+		BatchVerificationTask(String[] tokens, JWTVerificationResult[] results, int from, int to, String tenantId) {
+			this.tokens = tokens;
+			this.results = results;
+			this.from = from;
+			this.to = to;
+			this.tenantId = tenantId;
+		}
+		
+		@Override
+		protected void compute() {
+			if (to - from <= SEQUENTIAL_THRESHOLD) {
+				for (int i = from; i < to; i++) {
+					results[i] = validate(tokens[i], tenantId);
+				}
+			}
+			else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new BatchVerificationTask(tokens, results, from, middle, tenantId),
+						new BatchVerificationTask(tokens, results, middle, to, tenantId));
+			}
+		}
+	}
+	
+	private static void logRejection(JWTRejectionReason reason, Throwable e)
+	{
+		if (e != null) {
+			// already logged where it was caught
+			return;
+		}
+		else if (reason == JWTRejectionReason.INVALID_SIGNATURE) {
+			log.error("Invalid JWT signature.");
+		}
+		else if (reason != JWTRejectionReason.KEY_UNAVAILABLE) {
+			log.error(reason.getDescription() + ". Authentication failed.");
+		}
+	}
+	
+	private static void logParseFailure(Throwable e) 
+	{
+		if (e instanceof TenantException) {
+			log.error("Failed to validate JWT object.", e);
 		} 
-		catch (ParseException e) {
+		else if (e instanceof ParseException) {
 			log.error("Failed to parse JWT object. Authentication failed.", e);
 		} 
-		catch (Throwable e) {
+		else {
 			log.error("Error processing JWT header. Authentication failed.", e);
 		}
-		
-		return false;
 	}
 	
 	public static String getCurrentSignedJWT() {
@@ -250,214 +723,137 @@ public class JWTClient
 		return null;
 	}
 	
+	/**
+	 * @return the typed claims of the JWT bound to the current thread or
+	 * null if no JWT has been parsed on this thread.
+	 * @see AuthContext#current()
+	 */
+	public static AgaveClaims getCurrentClaims()
+	{
+		return AuthContext.current().getClaims();
+	}
+	
+	public static void setCurrentClaims(AgaveClaims claims)
+	{
+		AuthContext.setCurrent(AuthContext.current().withClaims(claims));
+	}
+	
+	/**
+	 * @return a copy of the current claims as a {@link JSONObject}. Changes
+	 * to the returned object are not reflected in the current claims. Use 
+	 * {@link #setCurrentJWSObject(JSONObject)} to replace them.
+	 */
 	public static JSONObject getCurrentJWSObject()
 	{
-		return threadJWTPayload.get();
+		AgaveClaims claims = getCurrentClaims();
+		return claims == null ? null : claims.toJSONObject();
 	}
 	
 	public static void setCurrentJWSObject(JSONObject json)
 	{
-		threadJWTPayload.set(json);
+		setCurrentClaims(json == null ? null : AgaveClaims.fromJSONObject(json));
 	}
 	
 	public static void setCurrentRawJWT(String serializedJWT) {
-		threadRawJWT.set(serializedJWT);
+		AuthContext.setCurrent(AuthContext.current().withRawJWT(serializedJWT));
 	}
 	
 	public static String getCurrentRawJWT() {
-		return threadRawJWT.get();
+		return AuthContext.current().getRawJWT();
 	}
 	
 	public static String getCurrentApplicationId()
 	{
-		try {
-			JSONObject claims = getCurrentJWSObject();
-			return (String)claims.get("http://wso2.org/claims/applicationid");
-		} catch (Exception e) {
-			return null;
-		}
+		AgaveClaims claims = getCurrentClaims();
+		return claims == null ? null : claims.getApplicationId();
 	}
 	
 	public static String getCurrentSubscriber() 
 	{
-		try {
-			JSONObject claims = getCurrentJWSObject();
-			return (String)claims.get("http://wso2.org/claims/subscriber");
-		} catch (Exception e) {
-			return null;
-		}
+		AgaveClaims claims = getCurrentClaims();
+		return claims == null ? null : claims.getSubscriber();
 	}
 	
 	public static String getCurrentTenant()
 	{
-		try 
-		{
-			JSONObject claims = getCurrentJWSObject();
-			if (claims.containsKey("tenantId") || !StringUtils.isEmpty((String)claims.get("tenantId"))) {
-				return (String)claims.get("tenantId");
-			}
-			else
-			{
-				String subscriber = (String)claims.get("http://wso2.org/claims/subscriber");
-				if (StringUtils.countMatches(subscriber, "@") > 0) {
-					return subscriber.substring(subscriber.lastIndexOf("@") + 1);
-				} else {
-					return (String)claims.get("http://wso2.org/claims/enduserTenantId");
-				}
-			}
-		} catch (Exception e) {
-			return null;
-		}
+		AgaveClaims claims = getCurrentClaims();
+		return claims == null ? null : claims.getTenant();
 	}
 	
 	public static void setCurrentTenant(String tenantId)
 	{
-		JSONObject claims = getCurrentJWSObject();
-		if (claims == null) {
-			claims = new JSONObject();
-		}
-		claims.put("tenantId", tenantId);
-		claims.put("http://wso2.org/claims/subscriber", tenantId);
-		setCurrentJWSObject(claims);
+		setCurrentClaims(getCurrentOrEmptyClaims().withTenant(tenantId));
 	}
 	
 	public static void setCurrentEndUser(String username)
 	{
-		JSONObject claims = getCurrentJWSObject();
-		if (claims == null) {
-			claims = new JSONObject();
-		}
-		claims.put("http://wso2.org/claims/enduser", username);
-		setCurrentJWSObject(claims);
+		setCurrentClaims(getCurrentOrEmptyClaims().withEndUser(username));
 	}
 
 	public static String getCurrentEndUser() 
 	{
-		try {
-			JSONObject claims = getCurrentJWSObject();
-			String tenant = getCurrentTenant();
-			String endUser = (String)claims.get("http://wso2.org/claims/enduser");
-			endUser = StringUtils.replace(endUser, "@carbon.super", "");
-			if (StringUtils.endsWith(endUser, tenant)) {
-				return StringUtils.substring(endUser, 0, (-1 * tenant.length() - 1));
-			} else if (endUser.contains("@")){
-				return StringUtils.substringBefore(endUser, "@");
-			} else if (endUser.contains("/")){
-				return StringUtils.substringAfter(endUser, "/");
-			} else {
-				return endUser;
-			}
-		} catch (Exception e) {
-			return null;
-		}
+		AgaveClaims claims = getCurrentClaims();
+		return claims == null ? null : claims.getEndUser();
 	}
 	
-   public static void setCurrentBearerToken(String bearerToken)
-    {
-        JSONObject claims = getCurrentJWSObject();
-        if (claims == null) {
-            claims = new JSONObject();
-        }
-        claims.put("bearerToken", bearerToken);
-        setCurrentJWSObject(claims);
-    }
-    
-    public static String getCurrentBearerToken()
-    {
-        JSONObject claims = getCurrentJWSObject();
-        if (claims == null) {
-            claims = new JSONObject();
-        }
-        return (String)claims.get("bearerToken");
-    }
+	public static void setCurrentBearerToken(String bearerToken)
+	{
+		setCurrentClaims(getCurrentOrEmptyClaims().withBearerToken(bearerToken));
+	}
+	
+	public static String getCurrentBearerToken()
+	{
+		AgaveClaims claims = getCurrentClaims();
+		return claims == null ? null : claims.getBearerToken();
+	}
+	
+	private static AgaveClaims getCurrentOrEmptyClaims() 
+	{
+		AgaveClaims claims = getCurrentClaims();
+		return claims == null ? AgaveClaims.fromJSONObject(new JSONObject()) : claims;
+	}
 	    
-    public static boolean isTenantAdmin() {
-		try {
-			JSONObject claims = getCurrentJWSObject();
-			
-			String roles = (String)claims.get("http://wso2.org/claims/role");
-			if (!StringUtils.isEmpty(roles)) {
-				for(String role: Arrays.asList(StringUtils.split(roles, ","))) {
-					if (StringUtils.endsWith(role, "-services-admin") || StringUtils.endsWith(role, "-super-admin")) {
-						if (role.contains("/")) {
-							role = role.substring(role.lastIndexOf("/") + 1);
-						}
-						if (StringUtils.startsWith(role, (String)claims.get("rawTenantId"))) {
-							return true;
-						}
-					}
-				}
-				return false;
-			} else {
-				return false;
-			}
-		} catch (Exception e) {
-			return false;
-		}
+	public static boolean isTenantAdmin() {
+		AgaveClaims claims = getCurrentClaims();
+		return claims != null && claims.isTenantAdmin();
 	}
 	
 	public static boolean isSuperAdmin() {
-		try {
-			JSONObject claims = getCurrentJWSObject();
-			
-			String roles = (String)claims.get("http://wso2.org/claims/role");
-			if (!StringUtils.isEmpty(roles)) {
-				for(String role: Arrays.asList(StringUtils.split(roles, ","))) {
-					if (StringUtils.endsWith(role, "-super-admin")) {
-						if (role.contains("/")) {
-							role = role.substring(role.lastIndexOf("/") + 1);
-						}
-						if (StringUtils.startsWith(role, (String)claims.get("rawTenantId"))) {
-							return true;
-						}
-					}
-				}
-				return false;
-			} else {
-				return false;
-			}
-		} catch (Exception e) {
-			return false;
-		}
+		AgaveClaims claims = getCurrentClaims();
+		return claims != null && claims.isSuperAdmin();
+	}
+	
+	/**
+	 * Checks whether the current end user holds the given role. Domain
+	 * prefixes such as {@code Internal/} are optional.
+	 * 
+	 * @param role the role to check
+	 * @return true if the current end user holds the role
+	 */
+	public static boolean hasRole(String role) {
+		AgaveClaims claims = getCurrentClaims();
+		return claims != null && claims.hasRole(role);
 	}
 	
+	/**
+	 * @param tenantId the tenant id
+	 * @return the lowercase name of the header carrying JWT for the tenant
+	 * @throws TenantException if the tenant is unknown or cannot be resolved
+	 */
 	public static String getJwtHeaderKeyForTenant(String tenantId)
 	throws TenantException
 	{
-		TenantsApi tenantsApi = new TenantsApi();
-		Tenant tenant;
-		try {
-			tenant = tenantsApi.getTenantDetails(tenantId, false, null);
-			
-			if (tenant == null) {
-				throw new TenantException("Unknown tenant id");
-			} else {
-				return ("x-jwt-assertion-" + StringUtils.replace(tenantId, ".", "-")).toLowerCase();
-			}
-		} catch (ApiException e) {
-			throw new TenantException("Failed to resolve the tenant id", e);
-		}
+		return tenantDirectory.get(tenantId).getJwtHeaderKey();
 	}
 	
+	/**
+	 * @return the lowercase name of the header carrying JWT for the tenant
+	 * of the current request
+	 * @throws TenantException if the tenant is unknown or cannot be resolved
+	 */
 	public static String getJwtHeaderKeyForCurrentTenant()
 	throws TenantException
 	{
-		String tenantId = getCurrentTenant();
-		
-		TenantsApi tenantsApi = new TenantsApi();
-		Tenant tenant;
-		try {
-			tenant = tenantsApi.getTenantDetails(tenantId, false, null);
-			
-			if (tenant == null) {
-				throw new TenantException("Unknown tenant id");
-			} else {
-				return ("x-jwt-assertion-" + StringUtils.replace(tenantId, ".", "-")).toLowerCase();
-			}
-		} catch (ApiException e) {
-			throw new TenantException("Failed to resolve the tenant id", e);
-		}
-		
-		
+		return getJwtHeaderKeyForTenant(getCurrentTenant());
 	}
 }
@@ -0,0 +1,141 @@
+/**
+ *
+ */
+package org.agave.client.auth;
+
+import java.nio.ByteBuffer;
+
+import org.agave.client.common.AuthSettings;
+import org.agave.client.common.guava.CharMatcher;
+
+/**
+ * Cheap checks of a serialized JWT run before it is digested, decoded or
+ * parsed. Each check is a single pass over the raw token with no
+ * allocation, and the configured limits put an upper bound on how much
+ * work any later step can be asked to do for one token.
+ *
+ * @author dooley
+ *
+ */
+final class JWTInputLimits {
+
+	/**
+	 * The Base64URL alphabet. Padding is not allowed in JWT.
+	 */
+	static final CharMatcher BASE64URL = CharMatcher.inRange('A', 'Z')
+			.or(CharMatcher.inRange('a', 'z'))
+			.or(CharMatcher.inRange('0', '9'))
+			.or(CharMatcher.anyOf("-_"));
+
+	private static final CharMatcher BASE64URL_OR_SEPARATOR = BASE64URL.or(CharMatcher.is('.'));
+
+	private JWTInputLimits() {}
+
+	/**
+	 * Checks the total, header and payload lengths against
+	 * {@link AuthSettings#JWT_MAX_LENGTH}, {@link AuthSettings#JWT_MAX_HEADER_LENGTH}
+	 * and {@link AuthSettings#JWT_MAX_PAYLOAD_LENGTH}.
+	 *
+	 * @return {@link JWTRejectionReason#TOO_LARGE} or null
+	 */
+	static JWTRejectionReason checkSize(CharSequence token) {
+		int length = token.length();
+		if (length > AuthSettings.JWT_MAX_LENGTH) {
+			return JWTRejectionReason.TOO_LARGE;
+		}
+
+		int firstDot = indexOfSeparator(token, 0, Math.min(length, AuthSettings.JWT_MAX_HEADER_LENGTH + 1));
+		if (firstDot < 0) {
+			// either an oversized header or no separator at all
+			return length > AuthSettings.JWT_MAX_HEADER_LENGTH ? JWTRejectionReason.TOO_LARGE : null;
+		}
+
+		int payloadEnd = Math.min(length, firstDot + 1 + AuthSettings.JWT_MAX_PAYLOAD_LENGTH + 1);
+		int secondDot = indexOfSeparator(token, firstDot + 1, payloadEnd);
+		if (secondDot < 0 && payloadEnd - firstDot - 1 > AuthSettings.JWT_MAX_PAYLOAD_LENGTH) {
+			return JWTRejectionReason.TOO_LARGE;
+		}
+		return null;
+	}
+
+	/**
+	 * Checks the token is three non-empty segments separated by dots.
+	 *
+	 * @return {@link JWTRejectionReason#MALFORMED} or null
+	 */
+	static JWTRejectionReason checkStructure(CharSequence token) {
+		int length = token.length();
+		int firstDot = indexOfSeparator(token, 0, length);
+		int secondDot = firstDot < 0 ? -1 : indexOfSeparator(token, firstDot + 1, length);
+		if (firstDot <= 0 || secondDot <= firstDot + 1 || secondDot == length - 1
+				|| indexOfSeparator(token, secondDot + 1, length) >= 0) {
+			return JWTRejectionReason.MALFORMED;
+		}
+		return null;
+	}
+
+	/**
+	 * Checks every character is in the Base64URL alphabet or a separator.
+	 *
+	 * @return {@link JWTRejectionReason#INVALID_ENCODING} or null
+	 */
+	static JWTRejectionReason checkEncoding(CharSequence token) {
+		return BASE64URL_OR_SEPARATOR.matchesAllOf(token) ? null : JWTRejectionReason.INVALID_ENCODING;
+	}
+
+	/**
+	 * Runs every check against a token held in the remaining bytes of the
+	 * buffer, without copying it. The buffer position is not changed.
+	 *
+	 * @return the first rejection or null if the token passes
+	 */
+	static JWTRejectionReason check(ByteBuffer token) {
+		CharSequence chars = new AsciiView(token);
+		JWTRejectionReason reason = checkSize(chars);
+		if (reason == null) reason = checkStructure(chars);
+		if (reason == null) reason = checkEncoding(chars);
+		return reason;
+	}
+
+	private static int indexOfSeparator(CharSequence token, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (token.charAt(i) == '.') return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Read-only character view of the remaining bytes of a buffer, one
+	 * character per byte.
+	 */
+	private static final class AsciiView implements CharSequence {
+		private final ByteBuffer buffer;
+		private final int offset;
+		private final int length;
+
+		AsciiView(ByteBuffer buffer) {
+			this(buffer, buffer.position(), buffer.remaining());
+		}
+
+		private AsciiView(ByteBuffer buffer, int offset, int length) {
+			this.buffer = buffer;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+		@Override
+		public char charAt(int index) {
+			return (char)(buffer.get(offset + index) & 0xff);
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return new AsciiView(buffer, offset + start, end - start);
+		}
+	}
+}
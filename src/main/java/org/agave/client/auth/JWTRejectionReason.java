@@ -0,0 +1,39 @@
+/**
+ *
+ */
+package org.agave.client.auth;
+
+/**
+ * Reasons a {@link JWTValidator} or {@link JWTAuthenticator} may reject a
+ * token.
+ *
+ * @author dooley
+ *
+ */
+public enum JWTRejectionReason {
+
+	NO_TOKEN("Request carried no JWT header"),
+	MALFORMED("JWT is not a well formed signed token"),
+	TOO_LARGE("JWT exceeds the configured size limits"),
+	INVALID_ENCODING("JWT contains characters outside the Base64URL alphabet"),
+	REVOKED("JWT has been revoked"),
+	EXPIRED("JWT has expired"),
+	UNKNOWN_TENANT("JWT was sent for an unknown tenant"),
+	TENANT_MISMATCH("JWT was issued for a different tenant than it was sent for"),
+	MISSING_CLAIMS("JWT is missing the end user, tenant, or subscriber"),
+	KEY_UNAVAILABLE("Tenant public key could not be loaded"),
+	INVALID_SIGNATURE("Invalid JWT signature");
+
+	private final String description;
+
+	private JWTRejectionReason(String description) {
+		this.description = description;
+	}
+
+	/**
+	 * @return a human readable description suitable for logging
+	 */
+	public String getDescription() {
+		return description;
+	}
+}
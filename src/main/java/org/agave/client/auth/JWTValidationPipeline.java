@@ -0,0 +1,78 @@
+/**
+ *
+ */
+package org.agave.client.auth;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Ordered list of {@link JWTValidator}s run against every token passed to
+ * {@link JWTClient#parse(String, String)}. Validation stops at the first
+ * rejection, so the cheap structural and claim checks keep malformed and
+ * expired tokens from ever reaching the signature check. The default
+ * pipeline ends with {@link JWTValidators#signature()}; custom pipelines
+ * should keep it, and keep it last.
+ *
+ * @author dooley
+ *
+ */
+public final class JWTValidationPipeline {
+
+	private static final JWTValidationPipeline DEFAULT = new JWTValidationPipeline(Arrays.asList(
+			JWTValidators.size(),
+			JWTValidators.structure(),
+			JWTValidators.base64URL(),
+			JWTValidators.notRevoked(),
+			JWTValidators.expiry(),
+			JWTValidators.tenant(),
+			JWTValidators.requiredClaims(),
+			JWTValidators.signature()));
+
+	private final JWTValidator[] validators;
+
+	/**
+	 * @param validators the validators to run, in order
+	 */
+	public JWTValidationPipeline(List<JWTValidator> validators) {
+		this.validators = validators.toArray(new JWTValidator[validators.size()]);
+	}
+
+	/**
+	 * @return the default pipeline: size, structure, Base64URL alphabet,
+	 * revocation, expiry, tenant, required claims, then signature
+	 */
+	public static JWTValidationPipeline defaults() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Runs every validator in order, stopping at the first rejection.
+	 *
+	 * @param token the token to validate
+	 * @return the result, holding the verified claims or the rejection reason
+	 */
+	public JWTVerificationResult validate(JWTCandidate token) {
+		for (JWTValidator validator: validators) {
+			JWTRejectionReason reason = validator.validate(token);
+			if (reason != null) {
+				return JWTVerificationResult.rejected(token.getSerializedToken(), reason);
+			}
+		}
+
+		if (!token.isSignatureVerified()) {
+			// never trust unverified claims, whatever the pipeline holds
+			return JWTVerificationResult.rejected(token.getSerializedToken(), JWTRejectionReason.INVALID_SIGNATURE);
+		}
+		return JWTVerificationResult.valid(token.getSerializedToken(), token.getClaims());
+	}
+
+	/**
+	 * @return the validators of this pipeline, in order
+	 */
+	public List<JWTValidator> getValidators() {
+		return Collections.unmodifiableList(new ArrayList<JWTValidator>(Arrays.asList(validators)));
+	}
+}
@@ -0,0 +1,21 @@
+/**
+ *
+ */
+package org.agave.client.auth;
+
+/**
+ * A single check in a {@link JWTValidationPipeline}. Validators report a
+ * rejection by returning its reason rather than throwing, so rejected tokens
+ * cost no more than the checks which ran.
+ *
+ * @author dooley
+ *
+ */
+public interface JWTValidator {
+
+	/**
+	 * @param token the token under validation
+	 * @return the reason the token is rejected, or null if it passes
+	 */
+	JWTRejectionReason validate(JWTCandidate token);
+}
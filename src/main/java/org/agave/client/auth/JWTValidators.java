@@ -0,0 +1,164 @@
+/**
+ *
+ */
+package org.agave.client.auth;
+
+import java.util.Date;
+
+import org.agave.client.common.AuthSettings;
+
+/**
+ * The validators making up the default {@link JWTValidationPipeline}, in
+ * roughly increasing order of cost.
+ *
+ * @author dooley
+ *
+ */
+public final class JWTValidators {
+
+	private JWTValidators() {}
+
+	/**
+	 * Rejects tokens longer than {@link AuthSettings#JWT_MAX_LENGTH}
+	 * characters, or whose header or payload segment exceeds
+	 * {@link AuthSettings#JWT_MAX_HEADER_LENGTH} or {@link AuthSettings#JWT_MAX_PAYLOAD_LENGTH}.
+	 * Never scans further into the token than the limits allow.
+	 */
+	public static JWTValidator size() {
+		return SIZE;
+	}
+
+	/**
+	 * Rejects tokens which are not three non-empty, dot separated segments.
+	 */
+	public static JWTValidator structure() {
+		return STRUCTURE;
+	}
+
+	/**
+	 * Rejects tokens containing anything other than Base64URL characters
+	 * and the segment separators.
+	 */
+	public static JWTValidator base64URL() {
+		return BASE64URL;
+	}
+
+	/**
+	 * Rejects tokens revoked through {@link JWTClient#revoke(String, Date)}.
+	 * Tokens which were never revoked are cleared by a Bloom filter.
+	 */
+	public static JWTValidator notRevoked() {
+		return NOT_REVOKED;
+	}
+
+	/**
+	 * Rejects tokens without an expiration time or whose expiration time
+	 * has passed.
+	 */
+	public static JWTValidator expiry() {
+		return EXPIRY;
+	}
+
+	/**
+	 * Rejects tokens sent for a tenant which has no cached key and is not
+	 * known to the tenant service, and tokens whose subscriber or end user
+	 * belongs to a different tenant than the one they were sent for. Unknown
+	 * tenants are remembered, so repeat rejections are a map lookup.
+	 */
+	public static JWTValidator tenant() {
+		return TENANT;
+	}
+
+	/**
+	 * Rejects tokens missing the end user, tenant, or subscriber claims.
+	 */
+	public static JWTValidator requiredClaims() {
+		return REQUIRED_CLAIMS;
+	}
+
+	/**
+	 * Rejects tokens whose signature does not match the tenant public key.
+	 * Tokens verified earlier are accepted from the verified token cache.
+	 */
+	public static JWTValidator signature() {
+		return SIGNATURE;
+	}
+
+	private static final JWTValidator SIZE = new JWTValidator() {
+		@Override
+		public JWTRejectionReason validate(JWTCandidate token) {
+			return JWTInputLimits.checkSize(token.getSerializedToken());
+		}
+	};
+
+	private static final JWTValidator STRUCTURE = new JWTValidator() {
+		@Override
+		public JWTRejectionReason validate(JWTCandidate token) {
+			return JWTInputLimits.checkStructure(token.getSerializedToken());
+		}
+	};
+
+	private static final JWTValidator BASE64URL = new JWTValidator() {
+		@Override
+		public JWTRejectionReason validate(JWTCandidate token) {
+			return JWTInputLimits.checkEncoding(token.getSerializedToken());
+		}
+	};
+
+	private static final JWTValidator NOT_REVOKED = new JWTValidator() {
+		@Override
+		public JWTRejectionReason validate(JWTCandidate token) {
+			return JWTClient.isRevoked(token.getSerializedToken()) ? JWTRejectionReason.REVOKED : null;
+		}
+	};
+
+	private static final JWTValidator EXPIRY = new JWTValidator() {
+		@Override
+		public JWTRejectionReason validate(JWTCandidate token) {
+			AgaveClaims claims = token.getClaims();
+			if (claims == null) {
+				return JWTRejectionReason.MALFORMED;
+			}
+			Date expirationDate = claims.getExpirationTime();
+			return expirationDate == null || !expirationDate.after(new Date()) ?
+					JWTRejectionReason.EXPIRED : null;
+		}
+	};
+
+	private static final JWTValidator TENANT = new JWTValidator() {
+		@Override
+		public JWTRejectionReason validate(JWTCandidate token) {
+			String tenantId = JWTClient.getKnownTenantId(token.getTenantId());
+			if (tenantId == null) {
+				return JWTRejectionReason.UNKNOWN_TENANT;
+			}
+			AgaveClaims claims = token.getClaims();
+			if (claims == null) {
+				return JWTRejectionReason.MALFORMED;
+			}
+			String claimedTenant = claims.getClaimedTenant();
+			return claimedTenant == null || claimedTenant.equals(tenantId) ? null : JWTRejectionReason.TENANT_MISMATCH;
+		}
+	};
+
+	private static final JWTValidator REQUIRED_CLAIMS = new JWTValidator() {
+		@Override
+		public JWTRejectionReason validate(JWTCandidate token) {
+			AgaveClaims claims = token.getClaims();
+			if (claims == null) {
+				return JWTRejectionReason.MALFORMED;
+			}
+			if (claims.getEndUser() == null || claims.getTenant() == null || claims.getSubscriber() == null) {
+				return JWTRejectionReason.MISSING_CLAIMS;
+			}
+			return null;
+		}
+	};
+
+	private static final JWTValidator SIGNATURE = new JWTValidator() {
+		@Override
+		public JWTRejectionReason validate(JWTCandidate token) {
+			return JWTClient.verifySignature(token);
+		}
+	};
+}
@@ -0,0 +1,83 @@
+/**
+ * 
+ */
+package org.agave.client.auth;
+
+/**
+ * Outcome of validating a single JWT. Holds either the verified claims or
+ * the reason the token was rejected.
+ * 
+ * @author dooley
+ *
+ */
+public class JWTVerificationResult {
+	
+	private final String serializedToken;
+	private final AgaveClaims claims;
+	private final JWTRejectionReason rejectionReason;
+	private final Throwable error;
+	
+	private JWTVerificationResult(String serializedToken, AgaveClaims claims, 
+			JWTRejectionReason rejectionReason, Throwable error) {
+		this.serializedToken = serializedToken;
+		this.claims = claims;
+		this.rejectionReason = rejectionReason;
+		this.error = error;
+	}
+	
+	static JWTVerificationResult valid(String serializedToken, AgaveClaims claims) {
+		return new JWTVerificationResult(serializedToken, claims, null, null);
+	}
+	
+	static JWTVerificationResult rejected(String serializedToken, JWTRejectionReason reason) {
+		return new JWTVerificationResult(serializedToken, null, reason, null);
+	}
+	
+	static JWTVerificationResult invalid(String serializedToken, JWTRejectionReason reason, Throwable error) {
+		return new JWTVerificationResult(serializedToken, null, reason, error);
+	}
+
+	/**
+	 * @return true if the token passed verification
+	 */
+	public boolean isValid() {
+		return claims != null;
+	}
+	
+	/**
+	 * @return the token which was verified
+	 */
+	public String getSerializedToken() {
+		return serializedToken;
+	}
+
+	/**
+	 * @return the verified claims, or null if the token was rejected
+	 */
+	public AgaveClaims getClaims() {
+		return claims;
+	}
+
+	/**
+	 * @return the identity of the verified token, ready to be activated on
+	 * any thread, or {@link AuthContext#EMPTY} if the token was rejected
+	 */
+	public AuthContext getContext() {
+		return claims == null ? AuthContext.EMPTY : AuthContext.of(claims, serializedToken);
+	}
+	
+	/**
+	 * @return why the token was rejected, or null if it is valid
+	 */
+	public JWTRejectionReason getRejectionReason() {
+		return rejectionReason;
+	}
+	
+	/**
+	 * @return the unexpected error which caused the rejection, or null if
+	 * the token is valid or was rejected by a validator
+	 */
+	public Throwable getError() {
+		return error;
+	}
+}
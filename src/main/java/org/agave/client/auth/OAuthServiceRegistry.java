@@ -0,0 +1,193 @@
+/**
+ *
+ */
+package org.agave.client.auth;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.agave.client.common.AuthSettings;
+import org.agave.client.common.Futures;
+import org.agave.client.common.PooledOAuthHttpClient;
+import org.agave.client.common.RateLimiter;
+import org.apache.commons.lang.StringUtils;
+
+import com.github.scribejava.apis.AgaveApi;
+import com.github.scribejava.core.builder.ServiceBuilder;
+import com.github.scribejava.core.oauth.CustomGrantTypeOAuth20Service;
+
+/**
+ * Shared, bounded registry of OAuth services keyed by tenant base url and
+ * client key, so token requests reuse one service, its config, and its
+ * precomputed Basic auth header rather than building them on every call.
+ * Services are thread safe and shared by every caller using the same client.
+ * A client without a tenant base url uses the default {@link AgaveApi}.
+ * Unless disabled, every service sends its requests through the shared
+ * {@link PooledOAuthHttpClient}, and when
+ * {@link AuthSettings#OAUTH_TOKEN_RATE_LIMIT} is set, token requests from
+ * every client share one rate limit.
+ *
+ * @author dooley
+ *
+ */
+class OAuthServiceRegistry {
+
+	private static final ConcurrentHashMap<ServiceKey, Entry> services = new ConcurrentHashMap<ServiceKey, Entry>();
+	
+	private static final RateLimiter tokenRateLimiter = AuthSettings.OAUTH_TOKEN_RATE_LIMIT > 0 ? 
+			new RateLimiter(AuthSettings.OAUTH_TOKEN_RATE_LIMIT) : null;
+
+	private OAuthServiceRegistry() {}
+
+	/**
+	 * Returns the service for the client at the given tenant, building it
+	 * on first use or if the client secret changed.
+	 *
+	 * @param baseUrl the tenant base url
+	 * @param apiKey the client key
+	 * @param apiSecret the client secret
+	 * @return the shared service for the client
+	 */
+	public static CustomGrantTypeOAuth20Service get(String baseUrl, String apiKey, String apiSecret) {
+		ServiceKey key = new ServiceKey(normalize(baseUrl), apiKey);
+
+		Entry entry = services.get(key);
+		if (entry != null && StringUtils.equals(entry.apiSecret, apiSecret)) {
+			return entry.service;
+		}
+
+		ServiceBuilder builder = new ServiceBuilder()
+				.apiKey(apiKey)
+				.apiSecret(apiSecret);
+		if (AuthSettings.OAUTH_HTTP_POOLED) {
+			builder.httpClient(PooledOAuthHttpClient.getInstance());
+		}
+		entry = new Entry(apiSecret, (CustomGrantTypeOAuth20Service) builder
+				.build(key.baseUrl.isEmpty() ? AgaveApi.instance() : new AgaveApi(key.baseUrl)));
+
+		evictIfFull();
+		services.put(key, entry);
+		return entry.service;
+	}
+
+	/**
+	 * Drops the service of a client which has been deleted.
+	 *
+	 * @param baseUrl the tenant base url
+	 * @param apiKey the client key
+	 */
+	public static void remove(String baseUrl, String apiKey) {
+		services.remove(new ServiceKey(normalize(baseUrl), apiKey));
+	}
+
+	/**
+	 * Waits for a turn at the token endpoint when token requests are rate
+	 * limited. Call before each token or refresh request.
+	 *
+	 * @throws IOException if no turn comes up within {@link AuthSettings#TOKEN_REQUEST_TIMEOUT}
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public static void acquireTokenPermit() throws IOException, InterruptedException {
+		if (tokenRateLimiter != null 
+				&& !tokenRateLimiter.tryAcquire(AuthSettings.TOKEN_REQUEST_TIMEOUT, TimeUnit.MILLISECONDS)) {
+			throw rateLimitExceeded();
+		}
+	}
+
+	/**
+	 * Same as {@link #acquireTokenPermit()} without blocking. The returned
+	 * future completes on a shared timer thread once the turn comes up, so
+	 * dependent stages should run their request on their own executor.
+	 *
+	 * @return a future completing at the caller's turn, or exceptionally with
+	 * an {@link IOException} if none comes up within {@link AuthSettings#TOKEN_REQUEST_TIMEOUT}
+	 */
+	public static CompletableFuture<Void> acquireTokenPermitAsync() {
+		if (tokenRateLimiter == null) {
+			return CompletableFuture.completedFuture(null);
+		}
+
+		long waitNanos = tokenRateLimiter.reserve(AuthSettings.TOKEN_REQUEST_TIMEOUT, TimeUnit.MILLISECONDS);
+		if (waitNanos < 0) {
+			CompletableFuture<Void> refused = new CompletableFuture<Void>();
+			refused.completeExceptionally(rateLimitExceeded());
+			return refused;
+		}
+		return Futures.delay(waitNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return true if a token request made now would have to wait its turn
+	 */
+	public static boolean isTokenEndpointSaturated() {
+		return tokenRateLimiter != null && tokenRateLimiter.isSaturated();
+	}
+
+	private static IOException rateLimitExceeded() {
+		return new IOException("Token endpoint rate limit of " + AuthSettings.OAUTH_TOKEN_RATE_LIMIT + 
+				" requests per second reached. No request slot free within " + 
+				AuthSettings.TOKEN_REQUEST_TIMEOUT + "ms");
+	}
+
+	/**
+	 * @return the number of services held
+	 */
+	public static int size() {
+		return services.size();
+	}
+
+	/**
+	 * Makes room for a new service by dropping arbitrary existing ones.
+	 * Dropped services are simply rebuilt on their next use.
+	 */
+	private static void evictIfFull() {
+		int maxEntries = Math.max(1, AuthSettings.OAUTH_SERVICE_CACHE_SIZE);
+		Iterator<ServiceKey> it = services.keySet().iterator();
+		while (services.size() >= maxEntries && it.hasNext()) {
+			it.next();
+			it.remove();
+		}
+	}
+
+	private static String normalize(String baseUrl) {
+		return StringUtils.removeEnd(StringUtils.trimToEmpty(baseUrl), "/");
+	}
+
+	private static final class Entry {
+		final String apiSecret;
+		final CustomGrantTypeOAuth20Service service;
+
+		Entry(String apiSecret, CustomGrantTypeOAuth20Service service) {
+			this.apiSecret = apiSecret;
+			this.service = service;
+		}
+	}
+
+	private static final class ServiceKey {
+		final String baseUrl;
+		final String apiKey;
+		private final int hashCode;
+
+		ServiceKey(String baseUrl, String apiKey) {
+			this.baseUrl = baseUrl;
+			this.apiKey = apiKey;
+			this.hashCode = 31 * baseUrl.hashCode() + (apiKey == null ? 0 : apiKey.hashCode());
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (!(o instanceof ServiceKey)) return false;
+			ServiceKey other = (ServiceKey)o;
+			return baseUrl.equals(other.baseUrl) && StringUtils.equals(apiKey, other.apiKey);
+		}
+	}
+}
@@ -0,0 +1,112 @@
+/**
+ *
+ */
+package org.agave.client.auth;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.agave.client.exceptions.TenantException;
+
+/**
+ * Bounded memory of recently failed tenant lookups, so requests for a
+ * failing or unknown tenant can be rejected without a remote call. Failures
+ * are also queued in the order they were recorded, which is the order they
+ * expire, so expired failures are dropped from the head of the queue as new
+ * ones arrive rather than by scanning every entry. Once the cap is reached,
+ * new failures are simply not remembered until old ones expire.
+ *
+ * @author dooley
+ *
+ */
+class RecentFailures {
+
+	private final int maxEntries;
+	private final ConcurrentHashMap<String, Failure> failures = new ConcurrentHashMap<String, Failure>();
+	private final ArrayDeque<Failure> expiryOrder = new ArrayDeque<Failure>();
+
+	/**
+	 * @param maxEntries the most failures remembered at once
+	 */
+	RecentFailures(int maxEntries) {
+		this.maxEntries = Math.max(1, maxEntries);
+	}
+
+	/**
+	 * @param tenantId the tenant to check
+	 * @param now the current time in milliseconds
+	 * @return the cause of the tenant's last failure if it has not yet
+	 * expired, null otherwise
+	 */
+	public TenantException get(String tenantId, long now) {
+		Failure failure = failures.get(tenantId);
+		if (failure == null) {
+			return null;
+		}
+		if (failure.retryAfter > now) {
+			return failure.cause;
+		}
+		failures.remove(tenantId, failure);
+		return null;
+	}
+
+	/**
+	 * Remembers a failure of the tenant for {@code ttl} milliseconds.
+	 *
+	 * @param tenantId the tenant which failed
+	 * @param cause the failure
+	 * @param ttl how long to remember it. 0 or less does nothing.
+	 */
+	public void remember(String tenantId, TenantException cause, long ttl) {
+		if (ttl <= 0) return;
+
+		long now = System.currentTimeMillis();
+		Failure failure = new Failure(tenantId, cause, now + ttl);
+		synchronized (expiryOrder) {
+			Failure oldest;
+			while ((oldest = expiryOrder.peekFirst()) != null && oldest.retryAfter <= now) {
+				expiryOrder.pollFirst();
+				failures.remove(oldest.tenantId, oldest);
+			}
+			if (expiryOrder.size() < maxEntries) {
+				expiryOrder.addLast(failure);
+				failures.put(tenantId, failure);
+			}
+		}
+	}
+
+	/**
+	 * Forgets the failure of a tenant which has since been resolved.
+	 *
+	 * @param tenantId the tenant to forget
+	 */
+	public void remove(String tenantId) {
+		failures.remove(tenantId);
+	}
+
+	/**
+	 * Forgets every failure.
+	 */
+	public void clear() {
+		synchronized (expiryOrder) {
+			expiryOrder.clear();
+			failures.clear();
+		}
+	}
+
+	/**
+	 * A remembered failure and the time after which the tenant may be
+	 * looked up again.
+	 */
+	private static class Failure {
+		final String tenantId;
+		final TenantException cause;
+		final long retryAfter;
+
+		Failure(String tenantId, TenantException cause, long retryAfter) {
+			this.tenantId = tenantId;
+			this.cause = cause;
+			this.retryAfter = retryAfter;
+		}
+	}
+}
@@ -0,0 +1,210 @@
+/**
+ *
+ */
+package org.agave.client.auth;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-memory denylist of tokens revoked by this process. Lookups first
+ * consult a Bloom filter, so the common case of a token which was never
+ * revoked costs one pass over the token and a few bit reads, with no
+ * locking and no allocation. Only tokens the filter reports as possibly
+ * revoked are checked against the exact set.
+ *
+ * Each entry is kept until the revoked token would have expired anyway.
+ * Expired entries are dropped as they are found and the filter is rebuilt
+ * from the remaining entries whenever a purge removes any.
+ *
+ * @author dooley
+ *
+ */
+class RevocationList {
+
+	private static final int BITS_PER_ENTRY = 10;
+	private static final int HASH_FUNCTIONS = 7;
+
+	/**
+	 * Minimum time in milliseconds between purges of expired entries.
+	 */
+	private static final long PURGE_INTERVAL = 60000;
+
+	private final int capacity;
+	private final ConcurrentHashMap<String, Long> revoked = new ConcurrentHashMap<String, Long>();
+	private volatile BloomFilter filter;
+	private long nextPurgeAt;
+
+	/**
+	 * @param capacity number of entries the filter is sized for. The
+	 * filter grows if more are added.
+	 */
+	public RevocationList(int capacity) {
+		this.capacity = Math.max(16, capacity);
+		this.filter = new BloomFilter(this.capacity);
+	}
+
+	/**
+	 * Adds the token to the denylist until {@code expiresAt}.
+	 *
+	 * @param token the serialized token
+	 * @param expiresAt the time in milliseconds the token expires
+	 */
+	public synchronized void revoke(String token, long expiresAt) {
+		long now = System.currentTimeMillis();
+		if (expiresAt <= now) return;
+
+		revoked.put(token, expiresAt);
+
+		if (now >= nextPurgeAt || revoked.size() > filter.capacity) {
+			nextPurgeAt = now + PURGE_INTERVAL;
+			purgeExpired(now);
+			if (revoked.size() > filter.capacity) {
+				rebuild(revoked.size() * 2);
+				return;
+			}
+		}
+		filter.put(token);
+	}
+
+	/**
+	 * @param token the serialized token
+	 * @return true if the token was revoked and has not yet expired
+	 */
+	public boolean isRevoked(String token) {
+		return isRevoked(token, 0, token.length());
+	}
+
+	/**
+	 * Same as {@link #isRevoked(String)} for a token held in part of a 
+	 * longer value, such as a header. Only a token the filter reports as
+	 * possibly revoked is copied out of {@code value}.
+	 *
+	 * @param value the characters holding the serialized token
+	 * @param start index of the first character of the token
+	 * @param end index after the last character of the token
+	 * @return true if the token was revoked and has not yet expired
+	 */
+	public boolean isRevoked(CharSequence value, int start, int end) {
+		if (revoked.isEmpty() || !filter.mightContain(value, start, end)) {
+			return false;
+		}
+
+		String token = value.subSequence(start, end).toString();
+		Long expiresAt = revoked.get(token);
+		if (expiresAt == null) {
+			return false;
+		}
+		if (expiresAt <= System.currentTimeMillis()) {
+			revoked.remove(token, expiresAt);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of revoked tokens currently held
+	 */
+	public int size() {
+		return revoked.size();
+	}
+
+	/**
+	 * Removes every entry from the denylist.
+	 */
+	public synchronized void clear() {
+		revoked.clear();
+		filter = new BloomFilter(capacity);
+	}
+
+	private void purgeExpired(long now) {
+		boolean removed = false;
+		Iterator<Map.Entry<String, Long>> it = revoked.entrySet().iterator();
+		while (it.hasNext()) {
+			if (it.next().getValue() <= now) {
+				it.remove();
+				removed = true;
+			}
+		}
+		if (removed) {
+			rebuild(capacity);
+		}
+	}
+
+	/**
+	 * Replaces the filter with one holding only the current entries. Callers
+	 * hold the lock, so no revocation can slip in between the copy and the
+	 * swap.
+	 */
+	private void rebuild(int minimumCapacity) {
+		BloomFilter rebuilt = new BloomFilter(Math.max(minimumCapacity, capacity));
+		for (String token: revoked.keySet()) {
+			rebuilt.put(token);
+		}
+		filter = rebuilt;
+	}
+
+	/**
+	 * Fixed size Bloom filter over strings using double hashing of a
+	 * 64 bit FNV-1a hash. Bits are set atomically so lookups need no lock.
+	 */
+	private static final class BloomFilter {
+		final int capacity;
+		private final AtomicLongArray bits;
+		private final long bitCount;
+
+		BloomFilter(int capacity) {
+			this.capacity = capacity;
+			int words = (int)Math.max(1, ((long)capacity * BITS_PER_ENTRY + 63) / 64);
+			this.bits = new AtomicLongArray(words);
+			this.bitCount = (long)words * 64;
+		}
+
+		void put(String token) {
+			long h1 = hash(token, 0, token.length());
+			long h2 = mix(h1) | 1;
+			for (int i = 0; i < HASH_FUNCTIONS; i++) {
+				long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+				int word = (int)(bit >>> 6);
+				long mask = 1L << bit;
+				long current;
+				do {
+					current = bits.get(word);
+					if ((current & mask) != 0) break;
+				} while (!bits.compareAndSet(word, current, current | mask));
+			}
+		}
+
+		boolean mightContain(CharSequence value, int start, int end) {
+			long h1 = hash(value, start, end);
+			long h2 = mix(h1) | 1;
+			for (int i = 0; i < HASH_FUNCTIONS; i++) {
+				long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+				if ((bits.get((int)(bit >>> 6)) & (1L << bit)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static long hash(CharSequence value, int start, int end) {
+			long h = 0xcbf29ce484222325L;
+			for (int i = start; i < end; i++) {
+				h ^= value.charAt(i);
+				h *= 0x100000001b3L;
+			}
+			return h;
+		}
+
+		private static long mix(long h) {
+			h ^= h >>> 33;
+			h *= 0xff51afd7ed558ccdL;
+			h ^= h >>> 33;
+			h *= 0xc4ceb9fe1a85ec53L;
+			h ^= h >>> 33;
+			return h;
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/**
+ *
+ */
+package org.agave.client.auth;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Precompiled index of the roles in a verified JWT. Roles are scanned once
+ * when the index is built. Admin checks then read a bit flag and arbitrary
+ * role checks are a single set lookup.
+ *
+ * @author dooley
+ *
+ */
+public final class RoleIndex {
+
+	private static final int TENANT_ADMIN = 1;
+	private static final int SUPER_ADMIN = 1 << 1;
+
+	private static final String SERVICES_ADMIN_SUFFIX = "-services-admin";
+	private static final String SUPER_ADMIN_SUFFIX = "-super-admin";
+
+	/**
+	 * Canonical instances of role names seen so far. The same few roles
+	 * appear in nearly every token, so sharing them keeps the per-token
+	 * sets small. Capped so unusual role names cannot grow it unbounded.
+	 */
+	private static final int MAX_CANONICAL_ROLES = 4096;
+	private static final ConcurrentHashMap<String, String> canonicalRoles = new ConcurrentHashMap<String, String>();
+
+	public static final RoleIndex EMPTY = new RoleIndex(0, Collections.<String>emptySet());
+
+	private final int flags;
+	private final Set<String> roles;
+
+	private RoleIndex(int flags, Set<String> roles) {
+		this.flags = flags;
+		this.roles = roles;
+	}
+
+	/**
+	 * Builds the index for the roles of a user in the given tenant. A user is
+	 * a tenant admin if they hold a {@code <tenant>-services-admin} or
+	 * {@code <tenant>-super-admin} role, and a super admin if they hold the
+	 * latter. Domain prefixes such as {@code Internal/} are ignored for both
+	 * the admin checks and {@link #hasRole(String)}.
+	 *
+	 * @param roles the roles from the JWT
+	 * @param rawTenantId the tenant id as received, before normalization
+	 * @return the compiled index
+	 */
+	public static RoleIndex compile(Collection<String> roles, String rawTenantId) {
+		if (roles == null || roles.isEmpty()) return EMPTY;
+
+		int flags = 0;
+		Set<String> index = new HashSet<String>(roles.size() * 4);
+		for (String role: roles) {
+			String name = role.contains("/") ? role.substring(role.lastIndexOf("/") + 1) : role;
+			index.add(canonicalize(role));
+			index.add(canonicalize(name));
+
+			if (StringUtils.startsWith(name, rawTenantId)) {
+				if (name.endsWith(SUPER_ADMIN_SUFFIX)) {
+					flags |= SUPER_ADMIN | TENANT_ADMIN;
+				} else if (name.endsWith(SERVICES_ADMIN_SUFFIX)) {
+					flags |= TENANT_ADMIN;
+				}
+			}
+		}
+
+		return new RoleIndex(flags, Collections.unmodifiableSet(index));
+	}
+
+	private static String canonicalize(String role) {
+		String canonical = canonicalRoles.get(role);
+		if (canonical == null) {
+			if (canonicalRoles.size() >= MAX_CANONICAL_ROLES) return role;
+
+			canonical = canonicalRoles.putIfAbsent(role, role);
+			if (canonical == null) canonical = role;
+		}
+		return canonical;
+	}
+
+	/**
+	 * @return true if the user is a services or super admin of the tenant
+	 */
+	public boolean isTenantAdmin() {
+		return (flags & TENANT_ADMIN) != 0;
+	}
+
+	/**
+	 * @return true if the user is a super admin of the tenant
+	 */
+	public boolean isSuperAdmin() {
+		return (flags & SUPER_ADMIN) != 0;
+	}
+
+	/**
+	 * @param role the role, with or without its domain prefix
+	 * @return true if the user holds the role
+	 */
+	public boolean hasRole(String role) {
+		return role != null && roles.contains(role);
+	}
+
+	/**
+	 * @return every indexed role name, both with and without domain prefixes
+	 */
+	public Set<String> getRoles() {
+		return roles;
+	}
+}
@@ -6,6 +6,11 @@ import java.security.NoSuchAlgorithmException;
 import java.security.Signature;
 import java.security.SignatureException;
 import java.security.interfaces.RSAPublicKey;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.agave.client.common.AuthSettings;
 
 import com.nimbusds.jose.JOSEException;
 import com.nimbusds.jose.ReadOnlyJWSHeader;
@@ -13,12 +18,31 @@ import com.nimbusds.jose.crypto.RSASSAVerifier;
 import com.nimbusds.jose.util.Base64URL;
 
 /**
- * Custom verifier to check for SHA256withRSA signing of a JWT
+ * Custom verifier to check for SHA256withRSA signing of a JWT. Initialized
+ * {@link Signature} engines are pooled per public key and reused across 
+ * calls, so the provider lookup and key initialization happen once per 
+ * pooled engine rather than once per token. At most {@link #MAX_POOLED_KEYS}
+ * keys are pooled at once, so verifiers built for ad-hoc keys cannot grow
+ * the pools without limit.
  * 
  * @author dooley
  *
  */
 public class SHA256withRSAVerifier extends RSASSAVerifier {
+	
+	/**
+	 * Upper bound on the number of keys with pooled engines. Past it,
+	 * arbitrary pools are dropped to make room and rebuilt on their next use.
+	 */
+	private static final int MAX_POOLED_KEYS = 1000;
+	
+	private static final ConcurrentHashMap<RSAPublicKey, SignaturePool> pools = 
+			new ConcurrentHashMap<RSAPublicKey, SignaturePool>();
+	
+	static {
+		// the SHA256withRSA algorithm must be registered before the first verifier is built
+		CryptoBootstrap.init();
+	}
 
 	public SHA256withRSAVerifier(RSAPublicKey publicKey) {
 		super(publicKey);
@@ -28,13 +52,42 @@ public class SHA256withRSAVerifier extends RSASSAVerifier {
 	public boolean verify(final ReadOnlyJWSHeader header,
 			final byte[] signedContent, final Base64URL signature)
 			throws JOSEException {
-
+		
+		byte[] signatureBytes = signature.decode();
+		return verify(getPublicKey(), signedContent, 0, signedContent.length, 
+				signatureBytes, 0, signatureBytes.length);
+	}
+	
+	/**
+	 * Verifies the SHA256withRSA {@code signature} of the {@code signedContent} 
+	 * with a pooled {@link Signature} engine for the {@code publicKey}.
+	 * 
+	 * @param publicKey the key to verify against
+	 * @param signedContent buffer holding the signing input
+	 * @param contentOffset offset of the signing input in the buffer
+	 * @param contentLength length of the signing input
+	 * @param signature buffer holding the decoded signature
+	 * @param signatureOffset offset of the signature in the buffer
+	 * @param signatureLength length of the signature
+	 * @return true if the signature is valid, false otherwise
+	 * @throws JOSEException if the key or signature cannot be processed
+	 */
+	public static boolean verify(RSAPublicKey publicKey, 
+			byte[] signedContent, int contentOffset, int contentLength,
+			byte[] signature, int signatureOffset, int signatureLength) 
+	throws JOSEException
+	{
+		SignaturePool pool = getPool(publicKey);
+		Signature verifier = null;
 		try {
-			Signature verifier = Signature.getInstance("SHA256withRSA");// getRSASignerAndVerifier(JWSAlgorithm.RS256);
-
-			verifier.initVerify(getPublicKey());
-			verifier.update(signedContent);
-			return verifier.verify(signature.decode());
+			verifier = pool.borrow();
+			verifier.update(signedContent, contentOffset, contentLength);
+			boolean valid = verifier.verify(signature, signatureOffset, signatureLength);
+			
+			// verify resets the engine to its initialized state, so it is safe to reuse 
+			pool.release(verifier);
+			
+			return valid;
 
 		} catch (InvalidKeyException e) {
 
@@ -50,4 +103,81 @@ public class SHA256withRSAVerifier extends RSASSAVerifier {
 					+ e.getMessage(), e);
 		}
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * Drops the pooled {@link Signature} engines for the given key. Engines
+	 * currently in use are discarded rather than returned when released.
+	 * 
+	 * @param publicKey the key which is no longer in use
+	 */
+	public static void invalidate(RSAPublicKey publicKey) {
+		if (publicKey == null) return;
+		
+		SignaturePool pool = pools.remove(publicKey);
+		if (pool != null) {
+			pool.invalidate();
+		}
+	}
+	
+	private static SignaturePool getPool(RSAPublicKey publicKey) {
+		SignaturePool pool = pools.get(publicKey);
+		if (pool == null) {
+			SignaturePool newPool = new SignaturePool(publicKey, AuthSettings.JWT_SIGNATURE_POOL_SIZE);
+			evictIfFull();
+			pool = pools.putIfAbsent(publicKey, newPool);
+			if (pool == null) {
+				pool = newPool;
+			}
+		}
+		return pool;
+	}
+	
+	/**
+	 * Makes room for a new pool by dropping arbitrary existing ones. Engines
+	 * of a dropped pool still in use are discarded when released.
+	 */
+	private static void evictIfFull() {
+		Iterator<SignaturePool> it = pools.values().iterator();
+		while (pools.size() >= MAX_POOLED_KEYS && it.hasNext()) {
+			SignaturePool evicted = it.next();
+			it.remove();
+			evicted.invalidate();
+		}
+	}
+	
+	/**
+	 * Bounded pool of {@link Signature} engines initialized for a single key.
+	 * Engines are created on demand when the pool is empty and dropped on 
+	 * release when the pool is full or has been invalidated.
+	 */
+	private static class SignaturePool {
+		private final RSAPublicKey publicKey;
+		private final ArrayBlockingQueue<Signature> idle;
+		private volatile boolean invalidated = false;
+		
+		SignaturePool(RSAPublicKey publicKey, int size) {
+			this.publicKey = publicKey;
+			this.idle = new ArrayBlockingQueue<Signature>(Math.max(1, size));
+		}
+		
+		Signature borrow() throws NoSuchAlgorithmException, InvalidKeyException {
+			Signature verifier = idle.poll();
+			if (verifier == null) {
+				verifier = Signature.getInstance("SHA256withRSA", CryptoBootstrap.getSignatureProvider());
+				verifier.initVerify(publicKey);
+			}
+			return verifier;
+		}
+		
+		void release(Signature verifier) {
+			if (!invalidated) {
+				idle.offer(verifier);
+			}
+		}
+		
+		void invalidate() {
+			invalidated = true;
+			idle.clear();
+		}
+	}
+}
@@ -0,0 +1,273 @@
+/**
+ *
+ */
+package org.agave.client.auth;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.agave.client.common.AuthSettings;
+import org.agave.client.common.SingleFlight;
+import org.agave.client.exceptions.TenantException;
+import org.agave.client.model.Tenant;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory directory of known tenants. Each entry holds every string the
+ * library derives from a tenant, computed once when the tenant is looked up,
+ * so per-request calls such as resolving the JWT header name are a single
+ * map read. Entries are looked up again after {@link AuthSettings#JWT_TENANT_CACHE_TTL}.
+ * Concurrent lookups of the same tenant share one remote call, and an
+ * expired entry keeps being served if the tenant service cannot be reached,
+ * with the next attempt put off for {@link AuthSettings#JWT_TENANT_FAILURE_TTL}.
+ *
+ * Failed lookups, including unknown tenant ids, are remembered for
+ * {@link AuthSettings#JWT_TENANT_FAILURE_TTL} so repeated requests for a bogus
+ * tenant are rejected without a remote call. At most
+ * {@link AuthSettings#JWT_TENANT_LOOKUP_CONCURRENCY} lookups run at once
+ * across all tenants, so a flood of distinct ids cannot fan out into an
+ * unbounded number of outbound requests. A lookup finding them all in use
+ * waits at most {@link AuthSettings#JWT_TENANT_LOOKUP_WAIT} before it is
+ * rejected, so the flood cannot park request threads either.
+ *
+ * @author dooley
+ *
+ */
+class TenantDirectory {
+
+	private static final Logger log = LoggerFactory.getLogger(TenantDirectory.class);
+
+	private static final String JWT_HEADER_PREFIX = "x-jwt-assertion-";
+	private static final String PUBLIC_KEY_PATH = "/apim/v2/publickey";
+
+	/**
+	 * Upper bound on remembered failures, so a stream of random tenant ids
+	 * cannot grow the directory without limit. Failures past it are simply
+	 * not remembered.
+	 */
+	private static final int MAX_FAILED_LOOKUPS = 10000;
+
+	/**
+	 * Fetches the details of a tenant from the tenant service.
+	 */
+	interface TenantLookup {
+		Tenant lookup(String tenantId) throws Exception;
+	}
+
+	private final TenantLookup lookup;
+	private final ConcurrentHashMap<String, TenantInfo> tenants = new ConcurrentHashMap<String, TenantInfo>();
+	private final RecentFailures failures = new RecentFailures(MAX_FAILED_LOOKUPS);
+	private final SingleFlight<String, TenantInfo> lookups = new SingleFlight<String, TenantInfo>();
+	private final Semaphore lookupPermits = new Semaphore(Math.max(1, AuthSettings.JWT_TENANT_LOOKUP_CONCURRENCY));
+
+	/**
+	 * @param lookup fetches tenants missing from the directory
+	 */
+	public TenantDirectory(TenantLookup lookup) {
+		this.lookup = lookup;
+	}
+
+	/**
+	 * Returns the directory entry of the tenant, looking it up on a miss
+	 * or once the entry expires.
+	 *
+	 * @param tenantId the tenant id as used by the tenant service
+	 * @return the tenant entry
+	 * @throws TenantException if the tenant does not exist or could not be resolved
+	 */
+	public TenantInfo get(final String tenantId) throws TenantException {
+		if (tenantId == null) {
+			throw new TenantException("No tenant id provided");
+		}
+
+		long now = System.currentTimeMillis();
+		final TenantInfo cached = tenants.get(tenantId);
+		if (cached != null && !cached.isExpired(now)) {
+			return cached;
+		}
+
+		if (cached == null) {
+			TenantException failure = failures.get(tenantId, now);
+			if (failure != null) {
+				throw new TenantException("Lookup of tenant " + tenantId
+						+ " recently failed. Not retrying until the failure expires.", failure);
+			}
+		}
+
+		try {
+			return lookups.execute(tenantId, new Callable<TenantInfo>() {
+				@Override
+				public TenantInfo call() throws Exception {
+					return load(tenantId, cached);
+				}
+			}, AuthSettings.JWT_TENANT_LOOKUP_TIMEOUT, TimeUnit.MILLISECONDS);
+		}
+		catch (TimeoutException e) {
+			if (cached != null) return cached;
+			throw new TenantException("Timed out after " + AuthSettings.JWT_TENANT_LOOKUP_TIMEOUT
+					+ "ms waiting for tenant " + tenantId + " to resolve", e);
+		}
+		catch (TenantException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new TenantException("Failed to find tenant with given id", e);
+		}
+	}
+
+	/**
+	 * Removes every entry from the directory.
+	 */
+	public void clear() {
+		tenants.clear();
+		failures.clear();
+	}
+
+	private TenantInfo load(String tenantId, TenantInfo stale) throws TenantException {
+		Tenant tenant;
+		try {
+			if (!acquireLookupPermit()) {
+				// not the tenant's fault, so don't remember it as a failure
+				if (stale != null) return keepStale(tenantId, stale);
+				throw new TenantException("Too many concurrent tenant lookups. Unable to resolve tenant " + tenantId);
+			}
+			try {
+				tenant = lookup.lookup(tenantId);
+			}
+			finally {
+				lookupPermits.release();
+			}
+		}
+		catch (TenantException e) {
+			throw e;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new TenantException("Interrupted while resolving tenant " + tenantId, e);
+		}
+		catch (Exception e) {
+			if (stale != null) {
+				log.warn("Failed to refresh tenant " + tenantId + ". Continuing to use the cached entry.", e);
+				return keepStale(tenantId, stale);
+			}
+			throw rememberFailure(tenantId, new TenantException("Failed to find tenant with given id", e));
+		}
+
+		if (tenant == null) {
+			tenants.remove(tenantId);
+			throw rememberFailure(tenantId, new TenantException("No tenant found for id " + tenantId));
+		}
+
+		TenantInfo info = new TenantInfo(tenantId, tenant.getBaseUrl(), expiresAt());
+		tenants.put(tenantId, info);
+		failures.remove(tenantId);
+		return info;
+	}
+
+	/**
+	 * Takes one of the shared lookup permits, waiting no longer than
+	 * {@link AuthSettings#JWT_TENANT_LOOKUP_WAIT} for one to free up.
+	 */
+	private boolean acquireLookupPermit() throws InterruptedException {
+		long wait = AuthSettings.JWT_TENANT_LOOKUP_WAIT;
+		return wait > 0 ? lookupPermits.tryAcquire(wait, TimeUnit.MILLISECONDS) : lookupPermits.tryAcquire();
+	}
+
+	/**
+	 * Keeps serving an expired entry whose refresh failed until the failure
+	 * expires, so requests for the tenant don't each retry the lookup while
+	 * the tenant service is unavailable.
+	 */
+	private TenantInfo keepStale(String tenantId, TenantInfo stale) {
+		long ttl = AuthSettings.JWT_TENANT_FAILURE_TTL;
+		if (ttl <= 0) return stale;
+
+		TenantInfo extended = new TenantInfo(stale, System.currentTimeMillis() + ttl);
+		tenants.replace(tenantId, stale, extended);
+		return extended;
+	}
+
+	private TenantException rememberFailure(String tenantId, TenantException e) {
+		failures.remember(tenantId, e, AuthSettings.JWT_TENANT_FAILURE_TTL);
+		return e;
+	}
+
+	private static long expiresAt() {
+		long ttl = AuthSettings.JWT_TENANT_CACHE_TTL;
+		return ttl > 0 ? System.currentTimeMillis() + ttl : Long.MAX_VALUE;
+	}
+
+	/**
+	 * The values derived from a single tenant.
+	 */
+	static final class TenantInfo {
+		private final String tenantId;
+		private final String normalizedTenantId;
+		private final String baseUrl;
+		private final String publicKeyUrl;
+		private final String jwtHeaderKey;
+		private final long expiresAt;
+
+		TenantInfo(String tenantId, String baseUrl, long expiresAt) {
+			this.tenantId = tenantId;
+			this.normalizedTenantId = AgaveClaims.normalizeTenantId(tenantId);
+			this.baseUrl = StringUtils.removeEnd(baseUrl, "/");
+			this.publicKeyUrl = this.baseUrl + PUBLIC_KEY_PATH;
+			this.jwtHeaderKey = (JWT_HEADER_PREFIX + StringUtils.replace(tenantId, ".", "-")).toLowerCase();
+			this.expiresAt = expiresAt;
+		}
+
+		private TenantInfo(TenantInfo info, long expiresAt) {
+			this.tenantId = info.tenantId;
+			this.normalizedTenantId = info.normalizedTenantId;
+			this.baseUrl = info.baseUrl;
+			this.publicKeyUrl = info.publicKeyUrl;
+			this.jwtHeaderKey = info.jwtHeaderKey;
+			this.expiresAt = expiresAt;
+		}
+
+		boolean isExpired(long now) {
+			return expiresAt <= now;
+		}
+
+		/**
+		 * @return the tenant id as used by the tenant service
+		 */
+		public String getTenantId() {
+			return tenantId;
+		}
+
+		/**
+		 * @return the tenant id as it appears in verified claims
+		 */
+		public String getNormalizedTenantId() {
+			return normalizedTenantId;
+		}
+
+		/**
+		 * @return the tenant base url without a trailing slash
+		 */
+		public String getBaseUrl() {
+			return baseUrl;
+		}
+
+		/**
+		 * @return the url of the tenant public key certificate
+		 */
+		public String getPublicKeyUrl() {
+			return publicKeyUrl;
+		}
+
+		/**
+		 * @return the lowercase name of the header carrying the tenant's JWT
+		 */
+		public String getJwtHeaderKey() {
+			return jwtHeaderKey;
+		}
+	}
+}
@@ -0,0 +1,178 @@
+/**
+ *
+ */
+package org.agave.client.auth;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local file holding the last certificate fetched for each tenant along
+ * with the time it was fetched. Reading it at startup lets the key cache
+ * verify tokens before any network call completes. The file is plain text,
+ * one tenant per line as {@code tenantId<TAB>fetchedAt<TAB>base64(DER)}, and
+ * is replaced atomically on every write so readers never see a partial file.
+ *
+ * @author dooley
+ *
+ */
+class TenantKeySnapshot {
+
+	private static final Logger log = LoggerFactory.getLogger(TenantKeySnapshot.class);
+
+	private final File file;
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+	/**
+	 * @param file the snapshot file. It need not exist yet.
+	 */
+	public TenantKeySnapshot(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Reads every entry from the snapshot file, skipping and logging lines
+	 * which cannot be parsed. A missing file yields no entries.
+	 *
+	 * @return the snapshot entries by tenant id
+	 */
+	public synchronized Map<String, Entry> read() {
+		entries.clear();
+		if (!file.isFile()) {
+			return Collections.emptyMap();
+		}
+
+		BufferedReader reader = null;
+		try {
+			reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8);
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (StringUtils.isBlank(line) || line.startsWith("#")) continue;
+
+				String[] fields = StringUtils.split(line, '\t');
+				try {
+					if (fields.length != 3) {
+						throw new IllegalArgumentException("expected 3 fields, found " + fields.length);
+					}
+					byte[] certificate = Base64.getDecoder().decode(fields[2]);
+					entries.put(fields[0], new Entry(toPublicKey(certificate), certificate, Long.parseLong(fields[1])));
+				}
+				catch (Exception e) {
+					log.warn("Skipping unreadable entry in tenant key snapshot " + file + ": " + e.getMessage());
+				}
+			}
+		}
+		catch (IOException e) {
+			log.warn("Failed to read tenant key snapshot " + file, e);
+		}
+		finally {
+			try { reader.close(); } catch (Exception e) {}
+		}
+
+		return new LinkedHashMap<String, Entry>(entries);
+	}
+
+	/**
+	 * Records the certificate fetched for the tenant and rewrites the file.
+	 * Failures are logged, never thrown, since the snapshot is only an
+	 * optimization.
+	 *
+	 * @param tenantId the tenant owning the certificate
+	 * @param certificate the DER encoded certificate
+	 * @param fetchedAt the time the certificate was fetched
+	 */
+	public synchronized void write(String tenantId, byte[] certificate, long fetchedAt) {
+		try {
+			entries.put(tenantId, new Entry(toPublicKey(certificate), certificate, fetchedAt));
+
+			File dir = file.getAbsoluteFile().getParentFile();
+			if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("Unable to create directory " + dir);
+			}
+
+			File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+			try {
+				BufferedWriter writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8);
+				try {
+					writer.write("# tenant public key snapshot. tenantId, fetched at, certificate\n");
+					for (Map.Entry<String, Entry> entry: entries.entrySet()) {
+						writer.write(entry.getKey());
+						writer.write('\t');
+						writer.write(Long.toString(entry.getValue().fetchedAt));
+						writer.write('\t');
+						writer.write(Base64.getEncoder().encodeToString(entry.getValue().certificate));
+						writer.write('\n');
+					}
+				}
+				finally {
+					writer.close();
+				}
+
+				try {
+					Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				}
+				catch (AtomicMoveNotSupportedException e) {
+					Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+			finally {
+				// don't leave a partial snapshot behind when the write or move fails
+				if (tmp.exists()) {
+					tmp.delete();
+				}
+			}
+		}
+		catch (Exception e) {
+			log.warn("Failed to update tenant key snapshot " + file + " for tenant " + tenantId, e);
+		}
+	}
+
+	/**
+	 * Parses a PEM or DER encoded X.509 certificate and returns its key.
+	 *
+	 * @param certificate the encoded certificate
+	 * @return the RSA public key in the certificate
+	 * @throws CertificateException if the certificate cannot be parsed
+	 */
+	static RSAPublicKey toPublicKey(byte[] certificate) throws CertificateException {
+		X509Certificate cert = (X509Certificate)CryptoBootstrap.newCertificateFactory()
+				.generateCertificate(new ByteArrayInputStream(certificate));
+		if (!(cert.getPublicKey() instanceof RSAPublicKey)) {
+			throw new CertificateException("Certificate does not hold an RSA public key");
+		}
+		return (RSAPublicKey)cert.getPublicKey();
+	}
+
+	/**
+	 * A snapshotted tenant key.
+	 */
+	static class Entry {
+		final RSAPublicKey key;
+		final byte[] certificate;
+		final long fetchedAt;
+
+		Entry(RSAPublicKey key, byte[] certificate, long fetchedAt) {
+			this.key = key;
+			this.certificate = certificate;
+			this.fetchedAt = fetchedAt;
+		}
+	}
+}
@@ -0,0 +1,66 @@
+/**
+ *
+ */
+package org.agave.client.auth;
+
+/**
+ * Outcome of warming the public key of a single tenant. Holds how long the
+ * tenant took to resolve and, if it failed, why.
+ *
+ * @author dooley
+ *
+ */
+public class TenantPrewarmResult {
+
+	private final String tenantId;
+	private final long elapsedMillis;
+	private final Throwable error;
+
+	private TenantPrewarmResult(String tenantId, long elapsedMillis, Throwable error) {
+		this.tenantId = tenantId;
+		this.elapsedMillis = elapsedMillis;
+		this.error = error;
+	}
+
+	static TenantPrewarmResult ready(String tenantId, long elapsedMillis) {
+		return new TenantPrewarmResult(tenantId, elapsedMillis, null);
+	}
+
+	static TenantPrewarmResult failed(String tenantId, long elapsedMillis, Throwable error) {
+		return new TenantPrewarmResult(tenantId, elapsedMillis, error);
+	}
+
+	/**
+	 * @return true if the tenant key is cached and tokens of the tenant
+	 * can be verified without a network call
+	 */
+	public boolean isReady() {
+		return error == null;
+	}
+
+	/**
+	 * @return the tenant which was warmed
+	 */
+	public String getTenantId() {
+		return tenantId;
+	}
+
+	/**
+	 * @return the time in milliseconds taken to resolve the tenant and its key
+	 */
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	/**
+	 * @return the reason the tenant could not be warmed, or null if it is ready
+	 */
+	public Throwable getError() {
+		return error;
+	}
+
+	@Override
+	public String toString() {
+		return tenantId + (isReady() ? " ready in " : " failed after ") + elapsedMillis + "ms";
+	}
+}
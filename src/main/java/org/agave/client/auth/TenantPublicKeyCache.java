@@ -0,0 +1,360 @@
+/**
+ *
+ */
+package org.agave.client.auth;
+
+import java.security.interfaces.RSAPublicKey;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.agave.client.common.AuthSettings;
+import org.agave.client.common.DaemonThreadFactory;
+import org.agave.client.common.SingleFlight;
+import org.agave.client.exceptions.TenantException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory cache of tenant public keys. Misses are loaded single-flight
+ * per tenant: one thread fetches the key while every other caller for the
+ * same tenant waits on that fetch, up to a configurable timeout. Failed
+ * fetches are remembered for a short, configurable period so a failing
+ * tenant is not hammered with repeat requests.
+ *
+ * Keys have a lifetime of {@link AuthSettings#JWT_KEY_TTL}. Once a key
+ * passes {@link AuthSettings#JWT_KEY_REFRESH_AHEAD} of its lifetime it is
+ * refreshed in the background, either by the next lookup or by a periodic
+ * sweep. Lookups keep receiving the last good key while a refresh is in
+ * flight, and for as long as the tenant cannot be reached, so key rotation
+ * never blocks or fails requests which can still be verified.
+ *
+ * Keys may also be pinned, in which case they are never refreshed or
+ * replaced by a fetch.
+ *
+ * @author dooley
+ *
+ */
+class TenantPublicKeyCache {
+
+	private static final Logger log = LoggerFactory.getLogger(TenantPublicKeyCache.class);
+
+	/**
+	 * Fetches the key of a tenant from its authoritative source.
+	 */
+	interface KeyLoader {
+		RSAPublicKey load(String tenantId) throws TenantException;
+	}
+
+	/**
+	 * Upper bound on remembered load failures, so requests naming random
+	 * tenants cannot grow the cache without limit.
+	 */
+	private static final int MAX_FAILED_LOADS = 10000;
+
+	private final KeyLoader loader;
+	private final ConcurrentHashMap<String, CachedKey> keys = new ConcurrentHashMap<String, CachedKey>();
+	private final RecentFailures failures = new RecentFailures(MAX_FAILED_LOADS);
+	private final ConcurrentHashMap<String, Long> lastForcedRefresh = new ConcurrentHashMap<String, Long>();
+	private final SingleFlight<String, RSAPublicKey> loads = new SingleFlight<String, RSAPublicKey>();
+
+	private volatile ScheduledExecutorService executor;
+
+	/**
+	 * @param loader fetches keys on a miss or refresh
+	 */
+	public TenantPublicKeyCache(KeyLoader loader) {
+		this.loader = loader;
+	}
+
+	/**
+	 * Returns the cached key of the tenant, loading it on a miss. Concurrent
+	 * misses for the same tenant share a single load. Keys due for refresh
+	 * are returned immediately while the refresh runs in the background.
+	 *
+	 * @param tenantId the tenant whose key to return
+	 * @return the tenant public key
+	 * @throws TenantException if the key could not be loaded, recently failed
+	 * to load, or the in-progress load did not finish in time
+	 */
+	public RSAPublicKey get(final String tenantId) throws TenantException {
+		CachedKey cached = keys.get(tenantId);
+		if (cached != null) {
+			if (cached.isRefreshDue(System.currentTimeMillis())) {
+				refreshAsync(tenantId);
+			}
+			return cached.key;
+		}
+
+		checkRecentFailure(tenantId);
+
+		try {
+			return loads.execute(tenantId, newLoadTask(tenantId, false),
+					AuthSettings.JWT_KEY_LOAD_TIMEOUT, TimeUnit.MILLISECONDS);
+		}
+		catch (TimeoutException e) {
+			throw new TenantException("Timed out after " + AuthSettings.JWT_KEY_LOAD_TIMEOUT
+					+ "ms waiting for the public key of tenant " + tenantId + " to load", e);
+		}
+		catch (TenantException e) {
+			throw e;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new TenantException("Interrupted while loading the public key of tenant " + tenantId, e);
+		}
+		catch (Exception e) {
+			throw new TenantException("Unable to load public key for tenant " + tenantId
+					+ ". Unexpected error occurred.", e);
+		}
+	}
+
+	/**
+	 * Asynchronous version of {@link #get(String)}. Loads run on daemon
+	 * threads owned by the cache, so callers never block.
+	 *
+	 * @param tenantId the tenant whose key to return
+	 * @return a future completing with the tenant public key
+	 */
+	public CompletableFuture<RSAPublicKey> getAsync(String tenantId) {
+		try {
+			CachedKey cached = keys.get(tenantId);
+			if (cached != null) {
+				return CompletableFuture.completedFuture(get(tenantId));
+			}
+
+			checkRecentFailure(tenantId);
+		}
+		catch (TenantException e) {
+			CompletableFuture<RSAPublicKey> failed = new CompletableFuture<RSAPublicKey>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+
+		return loads.executeAsync(tenantId, newLoadTask(tenantId, false), getExecutor());
+	}
+
+	/**
+	 * Refetches the key of a tenant after a signature failed to verify
+	 * against it, in case the tenant rotated its key. Forced refreshes are
+	 * limited to one per tenant per {@link AuthSettings#JWT_KEY_FORCED_REFRESH_INTERVAL}
+	 * so a stream of bad signatures cannot turn into a stream of fetches.
+	 *
+	 * @param tenantId the tenant whose key failed to verify a signature
+	 * @param failedKey the key which failed
+	 * @return the new key if it differs from {@code failedKey}, null otherwise
+	 */
+	public RSAPublicKey refreshAfterSignatureFailure(String tenantId, RSAPublicKey failedKey) {
+		CachedKey current = keys.get(tenantId);
+		if (current != null && current.pinned) {
+			return null;
+		}
+
+		long now = System.currentTimeMillis();
+		Long lastRefresh = lastForcedRefresh.get(tenantId);
+		if (lastRefresh != null && now - lastRefresh < AuthSettings.JWT_KEY_FORCED_REFRESH_INTERVAL) {
+			// a refresh already ran recently, but it may have found a new key
+			CachedKey cached = keys.get(tenantId);
+			return cached == null || cached.key.equals(failedKey) ? null : cached.key;
+		}
+
+		boolean claimed = lastRefresh == null ?
+				lastForcedRefresh.putIfAbsent(tenantId, now) == null :
+				lastForcedRefresh.replace(tenantId, lastRefresh, now);
+		if (!claimed) {
+			return null;
+		}
+
+		try {
+			log.debug("Signature verification failed for tenant " + tenantId
+					+ ". Refreshing the tenant public key in case it was rotated.");
+			RSAPublicKey key = loads.execute(tenantId, newLoadTask(tenantId, true),
+					AuthSettings.JWT_KEY_LOAD_TIMEOUT, TimeUnit.MILLISECONDS);
+			return key.equals(failedKey) ? null : key;
+		}
+		catch (Exception e) {
+			log.debug("Forced refresh of the public key for tenant " + tenantId + " failed.", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Caches the key for the tenant, invalidating the pooled verifiers of
+	 * any different key it replaces. The refresh deadline is counted from
+	 * {@code loadedAt}, so keys restored from a snapshot keep their age.
+	 * Pinned keys are left in place.
+	 *
+	 * @param tenantId the tenant owning the key
+	 * @param key the tenant public key
+	 * @param loadedAt the time the key was fetched from the tenant
+	 */
+	public void put(String tenantId, RSAPublicKey key, long loadedAt) {
+		CachedKey current = keys.get(tenantId);
+		if (current != null && current.pinned) {
+			return;
+		}
+
+		long ttl = AuthSettings.JWT_KEY_TTL;
+		replace(tenantId, new CachedKey(key, ttl > 0 ?
+				loadedAt + (long)(ttl * AuthSettings.JWT_KEY_REFRESH_AHEAD) : Long.MAX_VALUE, false));
+
+		if (ttl > 0) {
+			// make sure the refresh sweep is running
+			getExecutor();
+		}
+	}
+
+	/**
+	 * Caches a key for the tenant which is never refreshed or replaced by
+	 * a fetch, only by another call to this method.
+	 *
+	 * @param tenantId the tenant owning the key
+	 * @param key the trusted tenant public key
+	 */
+	public void pin(String tenantId, RSAPublicKey key) {
+		replace(tenantId, new CachedKey(key, Long.MAX_VALUE, true));
+	}
+
+	private void replace(String tenantId, CachedKey cached) {
+		// drop pooled verifiers for a replaced key so they can't outlive it
+		CachedKey previous = keys.put(tenantId, cached);
+		if (previous != null && !previous.key.equals(cached.key)) {
+			SHA256withRSAVerifier.invalidate(previous.key);
+		}
+		failures.remove(tenantId);
+	}
+
+	/**
+	 * @param tenantId the tenant whose key to look up
+	 * @return the cached key, even if expired, or null if not cached
+	 */
+	public RSAPublicKey getIfPresent(String tenantId) {
+		CachedKey cached = keys.get(tenantId);
+		return cached == null ? null : cached.key;
+	}
+
+	/**
+	 * Starts a background refresh of the tenant key unless one is already
+	 * in flight or the last attempt failed recently.
+	 */
+	private void refreshAsync(String tenantId) {
+		if (loads.isInFlight(tenantId)) return;
+
+		if (failures.get(tenantId, System.currentTimeMillis()) != null) return;
+
+		loads.executeAsync(tenantId, newLoadTask(tenantId, true), getExecutor());
+	}
+
+	private Callable<RSAPublicKey> newLoadTask(final String tenantId, final boolean refresh) {
+		return new Callable<RSAPublicKey>() {
+			@Override
+			public RSAPublicKey call() throws Exception {
+				return load(tenantId, refresh);
+			}
+		};
+	}
+
+	private RSAPublicKey load(String tenantId, boolean refresh) throws TenantException {
+		// another flight may have finished between our miss and this one starting
+		CachedKey cached = keys.get(tenantId);
+		if (cached != null && !refresh) {
+			return cached.key;
+		}
+
+		try {
+			put(tenantId, loader.load(tenantId), System.currentTimeMillis());
+			return getIfPresent(tenantId);
+		}
+		catch (TenantException e) {
+			rememberFailure(tenantId, e);
+
+			// keep serving the last good key until the tenant is reachable again
+			if (cached != null) {
+				log.warn("Failed to refresh the public key for tenant " + tenantId
+						+ ". Continuing to use the cached key.", e);
+				return cached.key;
+			}
+			throw e;
+		}
+	}
+
+	private void rememberFailure(String tenantId, TenantException e) {
+		failures.remember(tenantId, e, AuthSettings.JWT_KEY_LOAD_FAILURE_TTL);
+	}
+
+	private void checkRecentFailure(String tenantId) throws TenantException {
+		TenantException failure = failures.get(tenantId, System.currentTimeMillis());
+		if (failure != null) {
+			throw new TenantException("Loading the public key for tenant " + tenantId
+					+ " recently failed. Not retrying until the failure expires.", failure);
+		}
+	}
+
+	private void refreshDueKeys() {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, CachedKey> entry: keys.entrySet()) {
+			if (entry.getValue().isRefreshDue(now)) {
+				refreshAsync(entry.getKey());
+			}
+		}
+	}
+
+	/**
+	 * Returns the pool running background loads, starting it along with the
+	 * periodic sweep which refreshes keys of tenants not looked up recently.
+	 */
+	private ScheduledExecutorService getExecutor() {
+		ScheduledExecutorService scheduler = executor;
+		if (scheduler == null) {
+			synchronized (this) {
+				scheduler = executor;
+				if (scheduler == null) {
+					ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(
+							Math.max(1, AuthSettings.JWT_KEY_LOAD_THREADS),
+							new DaemonThreadFactory("tenant-key-loader"));
+					pool.setRemoveOnCancelPolicy(true);
+
+					long sweepInterval = Math.max(1000, AuthSettings.JWT_KEY_REFRESH_SWEEP_INTERVAL);
+					pool.scheduleWithFixedDelay(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								refreshDueKeys();
+							} catch (Throwable e) {
+								log.error("Failed to refresh tenant public keys.", e);
+							}
+						}
+					}, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+
+					scheduler = executor = pool;
+				}
+			}
+		}
+		return scheduler;
+	}
+
+	/**
+	 * A cached key, the time after which it should be refreshed, and
+	 * whether it was pinned.
+	 */
+	private static class CachedKey {
+		final RSAPublicKey key;
+		final long refreshAt;
+		final boolean pinned;
+
+		CachedKey(RSAPublicKey key, long refreshAt, boolean pinned) {
+			this.key = key;
+			this.refreshAt = refreshAt;
+			this.pinned = pinned;
+		}
+
+		boolean isRefreshDue(long now) {
+			return now >= refreshAt;
+		}
+	}
+}
@@ -0,0 +1,263 @@
+/**
+ *
+ */
+package org.agave.client.auth;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.agave.client.cache.LocalAgaveAuthConfig;
+import org.agave.client.common.AuthSettings;
+import org.agave.client.common.DaemonThreadFactory;
+
+/**
+ * Refreshes cached user tokens in the background before they expire, so
+ * callers of the auth clients are handed a valid token without waiting on
+ * the OAuth server. Each token is refreshed once
+ * {@link AuthSettings#TOKEN_REFRESH_AHEAD} of its lifetime has passed, less
+ * up to {@link AuthSettings#TOKEN_REFRESH_JITTER} of that so tokens issued
+ * together are not all refreshed together. Refreshes run on a small fixed
+ * pool of daemon threads shared by every auth client.
+ *
+ * Only tokens in use are kept fresh. A refresh coming due for a token which
+ * has not been {@link #touch(String) used} since it was scheduled is dropped,
+ * and the next request for the token renews it in the foreground.
+ *
+ * A failed refresh is retried at half the token's remaining lifetime. Once
+ * the token is within {@link #MIN_RETRY_DELAY} of expiring it is left to the
+ * next caller to renew, and the entry still counts as scheduled until it
+ * expires so callers do not reschedule a refresh bound to fail.
+ *
+ * @author dooley
+ *
+ */
+class TokenRefreshScheduler {
+
+	private final static Logger logger = Logger.getLogger(TokenRefreshScheduler.class.getName());
+
+	/**
+	 * Minimum time in milliseconds before a failed refresh is retried.
+	 */
+	static final long MIN_RETRY_DELAY = 5000;
+
+	/**
+	 * Fetches a new token for a cached entry and stores it back in the cache.
+	 */
+	interface Refresher {
+
+		/**
+		 * @return the refreshed config, or null if the entry is gone and
+		 * should no longer be refreshed
+		 * @throws Exception if the token could not be refreshed
+		 */
+		LocalAgaveAuthConfig refresh() throws Exception;
+
+		/**
+		 * @return true if a request is already renewing the token, in which
+		 * case the refresh is put off rather than waiting on it
+		 */
+		boolean isBusy();
+	}
+
+	private static final class Holder {
+		static final TokenRefreshScheduler INSTANCE = new TokenRefreshScheduler(
+				AuthSettings.TOKEN_REFRESH_THREADS, AuthSettings.TOKEN_REFRESH_AHEAD, AuthSettings.TOKEN_REFRESH_JITTER);
+	}
+
+	private final ScheduledThreadPoolExecutor executor;
+	private final ConcurrentHashMap<String, RefreshTask> scheduled = new ConcurrentHashMap<String, RefreshTask>();
+	private final double refreshAhead;
+	private final double jitter;
+
+	/**
+	 * @param threads number of threads refreshing tokens
+	 * @param refreshAhead fraction of a token's lifetime after which it is
+	 * refreshed. 0 disables refreshing.
+	 * @param jitter fraction of the refresh delay randomly taken off each refresh
+	 */
+	TokenRefreshScheduler(int threads, double refreshAhead, double jitter) {
+		this.refreshAhead = Math.min(1, Math.max(0, refreshAhead));
+		this.jitter = Math.min(1, Math.max(0, jitter));
+		this.executor = new ScheduledThreadPoolExecutor(Math.max(1, threads), new DaemonThreadFactory("token-refresh"));
+		this.executor.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * @return the scheduler shared by every auth client
+	 */
+	static TokenRefreshScheduler getInstance() {
+		return Holder.INSTANCE;
+	}
+
+	/**
+	 * Schedules the refresh of the token held in {@code config}, replacing
+	 * any refresh already scheduled under {@code key}.
+	 *
+	 * @param key unique id of the cache entry
+	 * @param config the cached token
+	 * @param refresher renews the token when due
+	 */
+	public void schedule(String key, LocalAgaveAuthConfig config, Refresher refresher) {
+		if (refreshAhead <= 0 || config == null || config.getExpiresAt() == null) return;
+
+		schedule(key, config, refresher, getRefreshDelay(config, System.currentTimeMillis()));
+	}
+
+	/**
+	 * Stops refreshing the token held under {@code key}.
+	 *
+	 * @param key unique id of the cache entry
+	 */
+	public void cancel(String key) {
+		RefreshTask task = scheduled.remove(key);
+		if (task != null) {
+			task.cancel();
+		}
+	}
+
+	/**
+	 * @param key unique id of the cache entry
+	 * @return true if a refresh is scheduled for the entry
+	 */
+	public boolean isScheduled(String key) {
+		return scheduled.containsKey(key);
+	}
+
+	/**
+	 * Records a use of the token held under {@code key}, keeping its next
+	 * refresh from being dropped as idle.
+	 *
+	 * @param key unique id of the cache entry
+	 * @return true if a refresh is scheduled for the entry
+	 */
+	public boolean touch(String key) {
+		RefreshTask task = scheduled.get(key);
+		if (task == null) {
+			return false;
+		}
+		task.used = true;
+		return true;
+	}
+
+	private RefreshTask schedule(String key, LocalAgaveAuthConfig config, Refresher refresher, long delay) {
+		RefreshTask task = new RefreshTask(key, config, refresher);
+
+		// register before scheduling so a task due at once finds itself current
+		RefreshTask previous = scheduled.put(key, task);
+		if (previous != null) {
+			previous.cancel();
+		}
+		task.future = executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+		return task;
+	}
+
+	private void refresh(String key, LocalAgaveAuthConfig config, Refresher refresher) {
+		// don't tie up a shared refresh thread waiting on a request for the same token
+		if (refresher.isBusy()) {
+			logger.log(Level.FINE, "Token for " + key + " is being renewed by a request. Checking again in " +
+					MIN_RETRY_DELAY + "ms");
+			schedule(key, config, refresher, MIN_RETRY_DELAY).used = true;
+			return;
+		}
+		
+		try {
+			LocalAgaveAuthConfig refreshed = refresher.refresh();
+			if (refreshed != null) {
+				schedule(key, refreshed, refresher);
+			}
+		}
+		catch (Throwable e) {
+			long remaining = toMillis(config.getExpiresAt()) - System.currentTimeMillis();
+			if (remaining / 2 >= MIN_RETRY_DELAY) {
+				logger.log(Level.FINE, "Failed to refresh token for " + key + ". Retrying in " +
+						(remaining / 2) + "ms", e);
+				schedule(key, config, refresher, remaining / 2);
+			}
+			else {
+				logger.log(Level.WARNING, "Failed to refresh token for " + key +
+						". It will be renewed by the next request after it expires", e);
+				// hold the key until expiry so callers don't reschedule a refresh due at once
+				schedule(key, config, null, Math.max(0, remaining));
+			}
+		}
+	}
+
+	/**
+	 * Delay until the token should be refreshed: {@code refreshAhead} of the
+	 * way through its lifetime, less a random share of up to {@code jitter}.
+	 */
+	long getRefreshDelay(LocalAgaveAuthConfig config, long now) {
+		long expiresAt = toMillis(config.getExpiresAt());
+		long lifetime = config.getExpiresIn() == null || config.getExpiresIn() <= 0 ?
+				expiresAt - now : config.getExpiresIn().longValue() * 1000;
+		long issuedAt = expiresAt - lifetime;
+
+		double fraction = refreshAhead * (1 - jitter * ThreadLocalRandom.current().nextDouble());
+		return Math.max(0, issuedAt + (long)(lifetime * fraction) - now);
+	}
+
+	/**
+	 * Checks expiration against the wall clock rather than the lifetime the
+	 * token was issued with.
+	 *
+	 * @param config the cached token
+	 * @return true if the token has expired
+	 */
+	static boolean isExpired(LocalAgaveAuthConfig config) {
+		if (config.getExpiresAt() == null) {
+			return config.getExpiresIn() == null || config.getExpiresIn() <= 0;
+		}
+		return !LocalDateTime.now().isBefore(config.getExpiresAt());
+	}
+
+	private static long toMillis(LocalDateTime dateTime) {
+		return dateTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+	}
+
+	/**
+	 * A single scheduled refresh. Runs only while it is still the task
+	 * registered for its key, so a superseded or cancelled refresh which
+	 * was already queued does nothing. A task without a refresher only 
+	 * holds the key of a token given up on until the token expires.
+	 */
+	private final class RefreshTask implements Runnable {
+		private final String key;
+		private final LocalAgaveAuthConfig config;
+		private final Refresher refresher;
+		private volatile ScheduledFuture<?> future;
+		private volatile boolean used;
+
+		RefreshTask(String key, LocalAgaveAuthConfig config, Refresher refresher) {
+			this.key = key;
+			this.config = config;
+			this.refresher = refresher;
+		}
+
+		@Override
+		public void run() {
+			if (!scheduled.remove(key, this) || refresher == null) {
+				return;
+			}
+			if (!used) {
+				logger.log(Level.FINE, "Token for " + key + " unused since it was last refreshed. " +
+						"It will be renewed by the next request for it");
+				return;
+			}
+			refresh(key, config, refresher);
+		}
+
+		void cancel() {
+			ScheduledFuture<?> f = future;
+			if (f != null) {
+				f.cancel(false);
+			}
+		}
+	}
+}
@@ -0,0 +1,327 @@
+/**
+ *
+ */
+package org.agave.client.auth;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Bounded, in-memory cache of JWT claims which have already passed signature
+ * verification. Entries are keyed by the SHA-256 digest of the tenant id and
+ * serialized token rather than the token itself and are dropped once the
+ * token's {@code exp} claim passes. Concurrent lookups of the same token
+ * while it is being verified wait on the single verification in progress.
+ * Once full, the cache is trimmed to {@link #LOW_WATER_MARK} of its size so
+ * the eviction scan runs once per many inserts rather than on every one.
+ *
+ * @author dooley
+ *
+ */
+class VerifiedTokenCache {
+
+	/**
+	 * Performs the full parse and signature verification of a token on a
+	 * cache miss. Returns null to reject the token without an exception.
+	 */
+	interface TokenVerifier<T> {
+		AgaveClaims verify(T serializedToken, String tenantId) throws Exception;
+	}
+
+	/**
+	 * Fraction of the maximum size the cache is trimmed to once full.
+	 */
+	static final double LOW_WATER_MARK = 0.9;
+
+	private static final ThreadLocal<MessageDigest> sha256 = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("SHA-256 is not supported by this JVM", e);
+			}
+		}
+	};
+
+	/**
+	 * Scratch space for encoding tokens into the digest and reading the
+	 * digest out, so computing a key allocates nothing but the key.
+	 */
+	private static final ThreadLocal<byte[]> digestBuffer = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[1024];
+		}
+	};
+
+	private final ConcurrentHashMap<TokenDigest, Entry> entries = new ConcurrentHashMap<TokenDigest, Entry>();
+	private final int maxEntries;
+	private final int lowWaterMark;
+
+	/**
+	 * @param maxEntries the maximum number of tokens to hold before evicting
+	 */
+	public VerifiedTokenCache(int maxEntries) {
+		this.maxEntries = maxEntries;
+		this.lowWaterMark = (int)(maxEntries * LOW_WATER_MARK);
+	}
+
+	/**
+	 * @return false if the cache was created with no room, in which case
+	 * every lookup runs the full verification
+	 */
+	public boolean isEnabled() {
+		return maxEntries > 0;
+	}
+
+	/**
+	 * Returns the verified claims for the token, calling the {@code verifier}
+	 * only if no unexpired entry exists for the token and tenant. Rejections
+	 * and exceptions from the verifier are passed to every caller waiting on
+	 * it and are never cached.
+	 *
+	 * @param key the digest of the tenant id and token from {@link TokenDigest#of},
+	 * or null to verify without caching
+	 * @param serializedToken the token passed to the {@code verifier}
+	 * @param tenantId the tenant whose key verifies the token
+	 * @param verifier the full verification to run on a miss
+	 * @return the verified claims of the token, or null if it was rejected
+	 * @throws Exception whatever the verifier threw
+	 */
+	public <T> AgaveClaims get(TokenDigest key, T serializedToken, String tenantId, TokenVerifier<T> verifier)
+	throws Exception
+	{
+		if (key == null || maxEntries <= 0) {
+			return verifier.verify(serializedToken, tenantId);
+		}
+
+		long now = System.currentTimeMillis();
+
+		Entry entry = entries.get(key);
+		if (entry != null && entry.isExpired(now)) {
+			entries.remove(key, entry);
+			entry = null;
+		}
+
+		if (entry == null) {
+			Entry candidate = new Entry();
+			entry = entries.putIfAbsent(key, candidate);
+
+			// we won the race, so this thread does the verification for everyone
+			if (entry == null) {
+				evictIfFull(now);
+
+				AgaveClaims claims;
+				try {
+					claims = verifier.verify(serializedToken, tenantId);
+				}
+				catch (Exception e) {
+					entries.remove(key, candidate);
+					candidate.future.completeExceptionally(e);
+					throw e;
+				}
+				catch (Error e) {
+					entries.remove(key, candidate);
+					candidate.future.completeExceptionally(e);
+					throw e;
+				}
+
+				Date expirationDate = claims == null ? null : claims.getExpirationTime();
+				if (expirationDate == null || expirationDate.getTime() <= now) {
+					// the caller rejects these, no point holding on to them
+					entries.remove(key, candidate);
+				} else {
+					candidate.expiresAt = expirationDate.getTime();
+				}
+				candidate.future.complete(claims);
+
+				return claims;
+			}
+		}
+
+		return entry.await();
+	}
+
+	/**
+	 * Returns the claims of the token if it has already been verified and
+	 * has not expired. Never waits on a verification in progress.
+	 *
+	 * @param key the digest of the tenant id and token from {@link TokenDigest#of}
+	 * @return the verified claims or null
+	 */
+	public AgaveClaims getIfPresent(TokenDigest key) {
+		if (key == null || maxEntries <= 0) return null;
+
+		Entry entry = entries.get(key);
+		if (entry == null || entry.isExpired(System.currentTimeMillis()) || !entry.future.isDone()
+				|| entry.future.isCompletedExceptionally()) {
+			return null;
+		}
+		return entry.future.getNow(null);
+	}
+
+	/**
+	 * Removes every entry from the cache.
+	 */
+	public void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * @return the number of tokens currently cached
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Makes room for new entries once the cache is full by first dropping
+	 * expired tokens, then arbitrary completed ones until the cache is down
+	 * to its low water mark. Trimming below the maximum means the scan only
+	 * runs again after that many more inserts.
+	 */
+	private void evictIfFull(long now) {
+		if (entries.size() <= maxEntries) return;
+
+		Iterator<Map.Entry<TokenDigest, Entry>> it = entries.entrySet().iterator();
+		while (it.hasNext()) {
+			if (it.next().getValue().isExpired(now)) {
+				it.remove();
+			}
+		}
+
+		it = entries.entrySet().iterator();
+		while (entries.size() > lowWaterMark && it.hasNext()) {
+			if (it.next().getValue().future.isDone()) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * A cached verification. While the verification is in flight the
+	 * entry never expires so waiting threads can join it.
+	 */
+	private static class Entry {
+		final CompletableFuture<AgaveClaims> future = new CompletableFuture<AgaveClaims>();
+		volatile long expiresAt = Long.MAX_VALUE;
+
+		boolean isExpired(long now) {
+			return expiresAt <= now;
+		}
+
+		AgaveClaims await() throws Exception {
+			try {
+				return future.get();
+			}
+			catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof Exception) {
+					throw (Exception)cause;
+				} else if (cause instanceof Error) {
+					throw (Error)cause;
+				} else {
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Fixed size cache key holding the 256 bit digest of a token as four
+	 * longs so equality checks never touch the original token.
+	 */
+	static final class TokenDigest {
+		private final long h0, h1, h2, h3;
+
+		private TokenDigest(byte[] digest) {
+			h0 = toLong(digest, 0);
+			h1 = toLong(digest, 8);
+			h2 = toLong(digest, 16);
+			h3 = toLong(digest, 24);
+		}
+
+		static TokenDigest of(String tenantId, String serializedToken) {
+			MessageDigest md = sha256.get();
+			byte[] buffer = digestBuffer.get();
+			update(md, tenantId, buffer);
+			md.update((byte)0);
+			update(md, serializedToken, buffer);
+			return digest(md, buffer);
+		}
+
+		static TokenDigest of(String tenantId, ByteBuffer serializedToken) {
+			MessageDigest md = sha256.get();
+			byte[] buffer = digestBuffer.get();
+			update(md, tenantId, buffer);
+			md.update((byte)0);
+			int position = serializedToken.position();
+			md.update(serializedToken);
+			serializedToken.position(position);
+			return digest(md, buffer);
+		}
+
+		/**
+		 * Feeds the UTF-8 encoding of {@code value} to the digest through the
+		 * buffer without copying the string. Tokens are Base64URL, so anything
+		 * outside ASCII is junk input and takes the slower, copying path.
+		 */
+		private static void update(MessageDigest md, String value, byte[] buffer) {
+			int length = 0;
+			for (int i = 0, n = value.length(); i < n; i++) {
+				char c = value.charAt(i);
+				if (c >= 0x80) {
+					md.update(buffer, 0, length);
+					md.update(value.substring(i).getBytes(StandardCharsets.UTF_8));
+					return;
+				}
+				if (length == buffer.length) {
+					md.update(buffer, 0, length);
+					length = 0;
+				}
+				buffer[length++] = (byte)c;
+			}
+			md.update(buffer, 0, length);
+		}
+
+		private static TokenDigest digest(MessageDigest md, byte[] buffer) {
+			try {
+				md.digest(buffer, 0, buffer.length);
+			} catch (DigestException e) {
+				throw new IllegalStateException("Unable to complete the SHA-256 digest", e);
+			}
+			return new TokenDigest(buffer);
+		}
+
+		private static long toLong(byte[] b, int offset) {
+			long value = 0;
+			for (int i = offset; i < offset + 8; i++) {
+				value = (value << 8) | (b[i] & 0xff);
+			}
+			return value;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int)(h0 ^ (h0 >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (!(o instanceof TokenDigest)) return false;
+			TokenDigest that = (TokenDigest)o;
+			return h0 == that.h0 && h1 == that.h1 && h2 == that.h2 && h3 == that.h3;
+		}
+	}
+}
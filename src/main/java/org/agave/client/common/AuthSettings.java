@@ -0,0 +1,265 @@
+/**
+ * 
+ */
+package org.agave.client.common;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+
+/**
+ * Tuning values for the auth library. Every value may be overridden with a
+ * JVM system property or an environment variable of the same name, checked
+ * in that order when the class is first loaded. The fields are left mutable
+ * so applications can also set them programmatically before first use.
+ * 
+ * @author dooley
+ *
+ */
+public class AuthSettings {
+	
+	/**
+	 * Maximum number of verified JWT kept in memory by {@code JWTClient}. A 
+	 * value of 0 disables the cache and forces a full signature check on 
+	 * every call.
+	 */
+	public static int JWT_VERIFIED_CACHE_SIZE = getInt("JWT_VERIFIED_CACHE_SIZE", 10000);
+	
+	/**
+	 * Maximum length in characters of a serialized JWT. Longer tokens are
+	 * rejected before they are decoded.
+	 */
+	public static int JWT_MAX_LENGTH = getInt("JWT_MAX_LENGTH", 16384);
+	
+	/**
+	 * Maximum length in characters of the encoded header segment of a JWT.
+	 */
+	public static int JWT_MAX_HEADER_LENGTH = getInt("JWT_MAX_HEADER_LENGTH", 1024);
+	
+	/**
+	 * Maximum length in characters of the encoded payload segment of a JWT.
+	 */
+	public static int JWT_MAX_PAYLOAD_LENGTH = getInt("JWT_MAX_PAYLOAD_LENGTH", 12288);
+	
+	/**
+	 * Number of revoked tokens the local revocation list is sized for. 
+	 * More may be revoked at the cost of a larger filter.
+	 */
+	public static int JWT_REVOCATION_CAPACITY = getInt("JWT_REVOCATION_CAPACITY", 10000);
+	
+	/**
+	 * Maximum number of idle initialized signature engines kept per tenant
+	 * public key by {@code SHA256withRSAVerifier}.
+	 */
+	public static int JWT_SIGNATURE_POOL_SIZE = getInt("JWT_SIGNATURE_POOL_SIZE", 
+			Runtime.getRuntime().availableProcessors() * 2);
+	
+	/**
+	 * Set to {@code BC} to force BouncyCastle for JWT signatures and tenant
+	 * certificates. By default the JDK providers are used.
+	 */
+	public static String JWT_CRYPTO_PROVIDER = getString("JWT_CRYPTO_PROVIDER", null);
+	
+	/**
+	 * Maximum time in milliseconds a thread waits on another thread's 
+	 * in-progress fetch of the same tenant public key.
+	 */
+	public static long JWT_KEY_LOAD_TIMEOUT = getLong("JWT_KEY_LOAD_TIMEOUT", 10000);
+	
+	/**
+	 * Time in milliseconds a failed tenant public key fetch is remembered.
+	 * Lookups for the tenant fail fast until it passes. 0 disables.
+	 */
+	public static long JWT_KEY_LOAD_FAILURE_TTL = getLong("JWT_KEY_LOAD_FAILURE_TTL", 5000);
+	
+	/**
+	 * Number of background threads fetching tenant public keys for 
+	 * asynchronous callers.
+	 */
+	public static int JWT_KEY_LOAD_THREADS = getInt("JWT_KEY_LOAD_THREADS", 4);
+	
+	/**
+	 * Lifetime in milliseconds of a cached tenant public key. Keys are 
+	 * refreshed in the background before it passes and kept in use if the
+	 * refresh fails. 0 caches keys for the life of the JVM.
+	 */
+	public static long JWT_KEY_TTL = getLong("JWT_KEY_TTL", 12 * 60 * 60 * 1000);
+	
+	/**
+	 * Fraction of {@link #JWT_KEY_TTL} after which a background refresh of a
+	 * tenant public key starts.
+	 */
+	public static double JWT_KEY_REFRESH_AHEAD = getDouble("JWT_KEY_REFRESH_AHEAD", 0.8);
+	
+	/**
+	 * Interval in milliseconds of the sweep refreshing tenant public keys 
+	 * which are due but have not been looked up.
+	 */
+	public static long JWT_KEY_REFRESH_SWEEP_INTERVAL = getLong("JWT_KEY_REFRESH_SWEEP_INTERVAL", 60000);
+	
+	/**
+	 * Minimum time in milliseconds between refreshes of a tenant public key
+	 * forced by a JWT failing signature verification.
+	 */
+	public static long JWT_KEY_FORCED_REFRESH_INTERVAL = getLong("JWT_KEY_FORCED_REFRESH_INTERVAL", 60000);
+	
+	/**
+	 * Path of a local file in which the last fetched certificate of every
+	 * tenant is kept, so keys are available at startup before any network
+	 * call. Unset disables the snapshot.
+	 */
+	public static String JWT_KEY_SNAPSHOT_FILE = getString("JWT_KEY_SNAPSHOT_FILE", null);
+	
+	/**
+	 * Comma separated list of {@code tenantId=path} pairs naming PEM or DER
+	 * certificate files whose keys are trusted for the tenant. Pinned keys
+	 * are never fetched, refreshed or replaced.
+	 */
+	public static String JWT_PINNED_KEYS = getString("JWT_PINNED_KEYS", null);
+	
+	/**
+	 * Time in milliseconds tenant details, such as the base url and JWT
+	 * header name, are cached before being looked up again. 0 caches them
+	 * for the life of the JVM.
+	 */
+	public static long JWT_TENANT_CACHE_TTL = getLong("JWT_TENANT_CACHE_TTL", 5 * 60 * 1000);
+	
+	/**
+	 * Time in milliseconds a failed tenant lookup, including an unknown
+	 * tenant id, is remembered. Lookups for the tenant fail fast until it
+	 * passes. 0 disables.
+	 */
+	public static long JWT_TENANT_FAILURE_TTL = getLong("JWT_TENANT_FAILURE_TTL", 30000);
+	
+	/**
+	 * Maximum number of remote tenant lookups in flight at once across all
+	 * tenants. Lookups of the same tenant are always shared.
+	 */
+	public static int JWT_TENANT_LOOKUP_CONCURRENCY = getInt("JWT_TENANT_LOOKUP_CONCURRENCY", 16);
+	
+	/**
+	 * Maximum time in milliseconds a tenant lookup waits for one of the 
+	 * {@link #JWT_TENANT_LOOKUP_CONCURRENCY} lookup slots to free up before
+	 * it is rejected. 0 rejects it at once.
+	 */
+	public static long JWT_TENANT_LOOKUP_WAIT = getLong("JWT_TENANT_LOOKUP_WAIT", 0);
+	
+	/**
+	 * Maximum time in milliseconds a thread waits on another thread's 
+	 * in-progress lookup of the same tenant.
+	 */
+	public static long JWT_TENANT_LOOKUP_TIMEOUT = getLong("JWT_TENANT_LOOKUP_TIMEOUT", 5000);
+	
+	/**
+	 * Maximum number of tenants resolved at once by {@code JWTClient.prewarm}.
+	 */
+	public static int JWT_PREWARM_CONCURRENCY = getInt("JWT_PREWARM_CONCURRENCY", 8);
+	
+	/**
+	 * Fraction of a cached user token's lifetime after which it is refreshed
+	 * in the background by the auth clients. 0 disables background refresh,
+	 * leaving tokens to be renewed by the first request after they expire.
+	 */
+	public static double TOKEN_REFRESH_AHEAD = getDouble("TOKEN_REFRESH_AHEAD", 0.75);
+	
+	/**
+	 * Largest fraction of the refresh delay randomly taken off each token's
+	 * refresh, spreading out the refresh of tokens issued together.
+	 */
+	public static double TOKEN_REFRESH_JITTER = getDouble("TOKEN_REFRESH_JITTER", 0.1);
+	
+	/**
+	 * Number of background threads refreshing cached user tokens.
+	 */
+	public static int TOKEN_REFRESH_THREADS = getInt("TOKEN_REFRESH_THREADS", 2);
+	
+	/**
+	 * Time in milliseconds a request for a user token waits on another
+	 * thread's in-progress acquisition or refresh of the same user's token.
+	 */
+	public static long TOKEN_REQUEST_TIMEOUT = getLong("TOKEN_REQUEST_TIMEOUT", 30000);
+	
+	/**
+	 * Maximum number of OAuth services, one per tenant and client key, kept
+	 * for reuse by the auth clients.
+	 */
+	public static int OAUTH_SERVICE_CACHE_SIZE = getInt("OAUTH_SERVICE_CACHE_SIZE", 10000);
+	
+	/**
+	 * Send OAuth token and revocation requests through the shared pooled
+	 * transport. When false, scribejava's default transport opens a new
+	 * connection per request.
+	 */
+	public static boolean OAUTH_HTTP_POOLED = getBoolean("OAUTH_HTTP_POOLED", true);
+	
+	/**
+	 * Maximum open connections to all auth servers through the pooled transport.
+	 */
+	public static int OAUTH_HTTP_MAX_CONNECTIONS = getInt("OAUTH_HTTP_MAX_CONNECTIONS", 100);
+	
+	/**
+	 * Maximum open connections to a single auth server through the pooled
+	 * transport.
+	 */
+	public static int OAUTH_HTTP_MAX_CONNECTIONS_PER_ROUTE = getInt("OAUTH_HTTP_MAX_CONNECTIONS_PER_ROUTE", 20);
+	
+	/**
+	 * Time in milliseconds to wait for a connection to an auth server to be
+	 * established, or for a free pooled connection.
+	 */
+	public static int OAUTH_HTTP_CONNECT_TIMEOUT = getInt("OAUTH_HTTP_CONNECT_TIMEOUT", 10000);
+	
+	/**
+	 * Time in milliseconds to wait for data from an auth server.
+	 */
+	public static int OAUTH_HTTP_READ_TIMEOUT = getInt("OAUTH_HTTP_READ_TIMEOUT", 30000);
+	
+	/**
+	 * Time in milliseconds an unused pooled connection is kept alive before
+	 * it is closed.
+	 */
+	public static long OAUTH_HTTP_IDLE_TIMEOUT = getLong("OAUTH_HTTP_IDLE_TIMEOUT", 60000);
+	
+	/**
+	 * Maximum requests per second to the OAuth token endpoint across all
+	 * auth clients in this JVM, covering both new tokens and refreshes.
+	 * Zero or less leaves them unlimited.
+	 */
+	public static double OAUTH_TOKEN_RATE_LIMIT = getDouble("OAUTH_TOKEN_RATE_LIMIT", 0);
+	
+	/**
+	 * Looks up the value of the named setting from the system properties,
+	 * then the environment.
+	 * 
+	 * @param name the name of the setting
+	 * @return the configured value or null if not present
+	 */
+	protected static String getValue(String name) {
+		String value = System.getProperty(name);
+		if (StringUtils.isEmpty(value)) {
+			value = System.getenv(name);
+		}
+		return StringUtils.trimToNull(value);
+	}
+	
+	protected static int getInt(String name, int defaultValue) {
+		return NumberUtils.toInt(getValue(name), defaultValue);
+	}
+	
+	protected static long getLong(String name, long defaultValue) {
+		return NumberUtils.toLong(getValue(name), defaultValue);
+	}
+	
+	protected static double getDouble(String name, double defaultValue) {
+		return NumberUtils.toDouble(getValue(name), defaultValue);
+	}
+	
+	protected static boolean getBoolean(String name, boolean defaultValue) {
+		String value = getValue(name);
+		return value == null ? defaultValue : Boolean.parseBoolean(value);
+	}
+	
+	protected static String getString(String name, String defaultValue) {
+		String value = getValue(name);
+		return value == null ? defaultValue : value;
+	}
+}
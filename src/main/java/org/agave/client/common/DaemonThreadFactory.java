@@ -0,0 +1,34 @@
+/**
+ * 
+ */
+package org.agave.client.common;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads for the library's background work so
+ * they never keep the host application's JVM alive.
+ * 
+ * @author dooley
+ *
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+	
+	private final String namePrefix;
+	private final AtomicInteger threadCount = new AtomicInteger();
+	
+	/**
+	 * @param namePrefix prefix of the thread names, followed by a sequence number
+	 */
+	public DaemonThreadFactory(String namePrefix) {
+		this.namePrefix = namePrefix;
+	}
+
+	@Override
+	public Thread newThread(Runnable runnable) {
+		Thread thread = new Thread(runnable, namePrefix + "-" + threadCount.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	}
+}
@@ -0,0 +1,181 @@
+/**
+ *
+ */
+package org.agave.client.common;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * {@link CompletableFuture} helpers missing from Java 8, used by the
+ * asynchronous auth client calls.
+ *
+ * @author dooley
+ *
+ */
+public final class Futures {
+
+	private static final class TimerHolder {
+		private static final ScheduledExecutorService SCHEDULER = newScheduler();
+
+		private static ScheduledExecutorService newScheduler() {
+			ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("future-timer"));
+			scheduler.setRemoveOnCancelPolicy(true);
+			return scheduler;
+		}
+	}
+
+	private Futures() {}
+
+	/**
+	 * Runs the task on the executor, allowing it to throw checked exceptions.
+	 * The returned future completes exceptionally with whatever the task threw.
+	 *
+	 * @param task the work to run
+	 * @param executor the executor to run it on
+	 * @return a future completing with the task's result
+	 */
+	public static <T> CompletableFuture<T> callAsync(final Callable<T> task, Executor executor) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (future.isDone()) return;
+					try {
+						future.complete(task.call());
+					}
+					catch (Throwable e) {
+						future.completeExceptionally(e);
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * Completes the future exceptionally with a {@link TimeoutException} if
+	 * it is not otherwise completed within the timeout. Equivalent to the
+	 * Java 9 {@code CompletableFuture.orTimeout}.
+	 *
+	 * @param future the future to bound
+	 * @param timeout how long to wait before giving up
+	 * @param unit the unit of {@code timeout}
+	 * @return {@code future}
+	 */
+	public static <T> CompletableFuture<T> orTimeout(final CompletableFuture<T> future, final long timeout, final TimeUnit unit) {
+		if (future.isDone() || timeout <= 0) return future;
+
+		final ScheduledFuture<?> deadline = TimerHolder.SCHEDULER.schedule(new Runnable() {
+			@Override
+			public void run() {
+				future.completeExceptionally(new TimeoutException("Timed out after " + unit.toMillis(timeout) + "ms"));
+			}
+		}, timeout, unit);
+
+		future.whenComplete(new BiConsumer<T, Throwable>() {
+			@Override
+			public void accept(T result, Throwable error) {
+				deadline.cancel(false);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Returns a future completing after the delay on a shared timer thread,
+	 * for waiting without holding a thread. Dependent stages should move
+	 * their work to an executor, since the timer thread is shared.
+	 *
+	 * @param delay how long to wait
+	 * @param unit the unit of {@code delay}
+	 * @return a future completing with null after the delay
+	 */
+	public static CompletableFuture<Void> delay(long delay, TimeUnit unit) {
+		final CompletableFuture<Void> future = new CompletableFuture<Void>();
+		if (delay <= 0) {
+			future.complete(null);
+			return future;
+		}
+
+		TimerHolder.SCHEDULER.schedule(new Runnable() {
+			@Override
+			public void run() {
+				future.complete(null);
+			}
+		}, delay, unit);
+		return future;
+	}
+
+	/**
+	 * Recovers from a failed future with another asynchronous call. 
+	 * Equivalent to the Java 12 {@code CompletableFuture.exceptionallyCompose},
+	 * except the fallback receives the failure unwrapped from any
+	 * {@link CompletionException}.
+	 *
+	 * @param future the future to recover
+	 * @param fallback starts the call replacing a failed {@code future}
+	 * @return a future completing with the result of {@code future}, or of
+	 * the fallback if it failed
+	 */
+	public static <T> CompletableFuture<T> exceptionallyCompose(CompletableFuture<T> future,
+			final Function<Throwable, ? extends CompletionStage<T>> fallback) {
+		return future.handle(new BiFunction<T, Throwable, CompletionStage<T>>() {
+			@Override
+			public CompletionStage<T> apply(T result, Throwable error) {
+				return error == null ? CompletableFuture.completedFuture(result) : fallback.apply(unwrap(error));
+			}
+		}).thenCompose(new Function<CompletionStage<T>, CompletionStage<T>>() {
+			@Override
+			public CompletionStage<T> apply(CompletionStage<T> stage) {
+				return stage;
+			}
+		});
+	}
+
+	/**
+	 * Returns a new future completing with the outcome of {@code source}.
+	 * Cancelling or timing out the returned future stops the caller waiting
+	 * without affecting {@code source}, which may be shared with others.
+	 *
+	 * @param source the future to follow
+	 * @return a future private to the caller
+	 */
+	public static <T> CompletableFuture<T> detached(CompletableFuture<T> source) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		source.whenComplete(new BiConsumer<T, Throwable>() {
+			@Override
+			public void accept(T result, Throwable error) {
+				if (error != null) {
+					future.completeExceptionally(unwrap(error));
+				} else {
+					future.complete(result);
+				}
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * @return the cause of a {@link CompletionException}, or the error itself
+	 */
+	public static Throwable unwrap(Throwable error) {
+		return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+	}
+}
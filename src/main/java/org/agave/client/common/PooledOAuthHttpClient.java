@@ -0,0 +1,312 @@
+/**
+ *
+ */
+package org.agave.client.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpOptions;
+import org.apache.http.client.methods.HttpPatch;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpTrace;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLContexts;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+import com.github.scribejava.core.httpclient.HttpClient;
+import com.github.scribejava.core.model.OAuthAsyncRequestCallback;
+import com.github.scribejava.core.model.OAuthRequest;
+import com.github.scribejava.core.model.Response;
+import com.github.scribejava.core.model.Verb;
+
+/**
+ * Scribejava transport backed by a pooled Apache HttpClient, used in place
+ * of the default {@code HttpURLConnection} transport for OAuth token and
+ * revocation calls. Connections are kept alive and reused across requests,
+ * limited per route and in total, and evicted once idle. All connections
+ * share one TLS context, so reconnects to the same auth server resume the
+ * cached TLS session rather than repeating the full handshake.
+ *
+ * Asynchronous requests run on a bounded pool of daemon threads no larger
+ * than the connection pool. When every thread is busy the caller runs the
+ * request itself.
+ *
+ * A single shared instance configured from {@link AuthSettings} is
+ * available through {@link #getInstance()}. It is never closed.
+ *
+ * @author dooley
+ *
+ */
+public class PooledOAuthHttpClient implements HttpClient {
+
+	private static final class InstanceHolder {
+		private static final PooledOAuthHttpClient INSTANCE = new PooledOAuthHttpClient(
+				AuthSettings.OAUTH_HTTP_MAX_CONNECTIONS,
+				AuthSettings.OAUTH_HTTP_MAX_CONNECTIONS_PER_ROUTE,
+				AuthSettings.OAUTH_HTTP_CONNECT_TIMEOUT,
+				AuthSettings.OAUTH_HTTP_READ_TIMEOUT,
+				AuthSettings.OAUTH_HTTP_IDLE_TIMEOUT);
+	}
+
+	private final PoolingHttpClientConnectionManager connectionManager;
+	private final CloseableHttpClient httpClient;
+	private final ScheduledExecutorService evictor;
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * @param maxConnections maximum open connections across all routes
+	 * @param maxConnectionsPerRoute maximum open connections to a single host
+	 * @param connectTimeout milliseconds to wait for a connection to be established
+	 * and for a free connection from the pool
+	 * @param readTimeout milliseconds to wait for data on an open connection
+	 * @param idleTimeout milliseconds an unused connection is kept alive
+	 */
+	public PooledOAuthHttpClient(int maxConnections, int maxConnectionsPerRoute,
+			int connectTimeout, int readTimeout, final long idleTimeout)
+	{
+		Registry<ConnectionSocketFactory> socketFactories = RegistryBuilder.<ConnectionSocketFactory>create()
+				.register("http", PlainConnectionSocketFactory.getSocketFactory())
+				.register("https", new SSLConnectionSocketFactory(SSLContexts.createDefault(),
+						SSLConnectionSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER))
+				.build();
+
+		connectionManager = new PoolingHttpClientConnectionManager(socketFactories);
+		connectionManager.setMaxTotal(Math.max(1, maxConnections));
+		connectionManager.setDefaultMaxPerRoute(Math.max(1, Math.min(maxConnections, maxConnectionsPerRoute)));
+
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(connectTimeout)
+				.setConnectionRequestTimeout(connectTimeout)
+				.setSocketTimeout(readTimeout)
+				.build();
+
+		httpClient = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(requestConfig)
+				.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+					@Override
+					public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+						// honor a shorter server keep-alive, but never hold a connection past the idle timeout
+						long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+						return duration > 0 && duration < idleTimeout ? duration : idleTimeout;
+					}
+				})
+				.disableCookieManagement()
+				.build();
+
+		evictor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("oauth-http-evictor"));
+		long evictionInterval = Math.max(1000, idleTimeout / 2);
+		evictor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				connectionManager.closeExpiredConnections();
+				connectionManager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+			}
+		}, evictionInterval, evictionInterval, TimeUnit.MILLISECONDS);
+
+		executor = new ThreadPoolExecutor(0, connectionManager.getMaxTotal(), 60, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), new DaemonThreadFactory("oauth-http"),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	/**
+	 * @return the transport shared by every OAuth service built by the library
+	 */
+	public static PooledOAuthHttpClient getInstance() {
+		return InstanceHolder.INSTANCE;
+	}
+
+	@Override
+	public void close() throws IOException {
+		evictor.shutdownNow();
+		executor.shutdown();
+		httpClient.close();
+	}
+
+	@Override
+	public Response execute(String userAgent, Map<String, String> headers, Verb httpVerb, String completeUrl,
+			byte[] bodyContents) throws InterruptedException, ExecutionException, IOException
+	{
+		return doExecute(userAgent, headers, httpVerb, completeUrl,
+				bodyContents == null ? null : new ByteArrayEntity(bodyContents));
+	}
+
+	@Override
+	public Response execute(String userAgent, Map<String, String> headers, Verb httpVerb, String completeUrl,
+			String bodyContents) throws InterruptedException, ExecutionException, IOException
+	{
+		return doExecute(userAgent, headers, httpVerb, completeUrl,
+				bodyContents == null ? null : new ByteArrayEntity(bodyContents.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	@Override
+	public Response execute(String userAgent, Map<String, String> headers, Verb httpVerb, String completeUrl,
+			File bodyContents) throws InterruptedException, ExecutionException, IOException
+	{
+		return doExecute(userAgent, headers, httpVerb, completeUrl,
+				bodyContents == null ? null : new FileEntity(bodyContents));
+	}
+
+	@Override
+	public <T> Future<T> executeAsync(final String userAgent, final Map<String, String> headers, final Verb httpVerb,
+			final String completeUrl, final byte[] bodyContents, OAuthAsyncRequestCallback<T> callback,
+			OAuthRequest.ResponseConverter<T> converter)
+	{
+		return submit(new Callable<Response>() {
+			@Override
+			public Response call() throws Exception {
+				return execute(userAgent, headers, httpVerb, completeUrl, bodyContents);
+			}
+		}, callback, converter);
+	}
+
+	@Override
+	public <T> Future<T> executeAsync(final String userAgent, final Map<String, String> headers, final Verb httpVerb,
+			final String completeUrl, final String bodyContents, OAuthAsyncRequestCallback<T> callback,
+			OAuthRequest.ResponseConverter<T> converter)
+	{
+		return submit(new Callable<Response>() {
+			@Override
+			public Response call() throws Exception {
+				return execute(userAgent, headers, httpVerb, completeUrl, bodyContents);
+			}
+		}, callback, converter);
+	}
+
+	@Override
+	public <T> Future<T> executeAsync(final String userAgent, final Map<String, String> headers, final Verb httpVerb,
+			final String completeUrl, final File bodyContents, OAuthAsyncRequestCallback<T> callback,
+			OAuthRequest.ResponseConverter<T> converter)
+	{
+		return submit(new Callable<Response>() {
+			@Override
+			public Response call() throws Exception {
+				return execute(userAgent, headers, httpVerb, completeUrl, bodyContents);
+			}
+		}, callback, converter);
+	}
+
+	/**
+	 * Runs the request on the async pool, converting the response and
+	 * notifying the callback, if any, of the outcome.
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> Future<T> submit(final Callable<Response> request, final OAuthAsyncRequestCallback<T> callback,
+			final OAuthRequest.ResponseConverter<T> converter)
+	{
+		FutureTask<T> task = new FutureTask<T>(new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				try {
+					Response response = request.call();
+					T result = converter == null ? (T)response : converter.convert(response);
+					if (callback != null) {
+						callback.onCompleted(result);
+					}
+					return result;
+				}
+				catch (Exception e) {
+					if (callback != null) {
+						callback.onThrowable(e);
+					}
+					throw e;
+				}
+			}
+		});
+		executor.execute(task);
+		return task;
+	}
+
+	/**
+	 * Sends the request and reads the whole response so the connection
+	 * goes straight back to the pool.
+	 */
+	private Response doExecute(String userAgent, Map<String, String> headers, Verb httpVerb,
+			String completeUrl, HttpEntity body) throws IOException
+	{
+		HttpRequestBase request = createRequest(httpVerb, completeUrl);
+
+		boolean hasContentType = false;
+		for (Map.Entry<String, String> header: headers.entrySet()) {
+			request.addHeader(header.getKey(), header.getValue());
+			hasContentType |= HttpClient.CONTENT_TYPE.equalsIgnoreCase(header.getKey());
+		}
+		if (userAgent != null) {
+			request.setHeader("User-Agent", userAgent);
+		}
+
+		if (body != null && request instanceof HttpEntityEnclosingRequest) {
+			if (!hasContentType) {
+				request.setHeader(HttpClient.CONTENT_TYPE, HttpClient.DEFAULT_CONTENT_TYPE);
+			}
+			((HttpEntityEnclosingRequest)request).setEntity(body);
+		}
+
+		CloseableHttpResponse response = httpClient.execute(request);
+		try {
+			Map<String, String> responseHeaders = new HashMap<String, String>();
+			for (Header header: response.getAllHeaders()) {
+				responseHeaders.put(header.getName(), header.getValue());
+			}
+
+			HttpEntity entity = response.getEntity();
+			String responseBody = entity == null ? "" : EntityUtils.toString(entity, StandardCharsets.UTF_8);
+
+			return new Response(response.getStatusLine().getStatusCode(),
+					response.getStatusLine().getReasonPhrase(), responseHeaders, responseBody);
+		}
+		finally {
+			response.close();
+		}
+	}
+
+	private static HttpRequestBase createRequest(Verb httpVerb, String completeUrl) {
+		switch (httpVerb) {
+			case GET: return new HttpGet(completeUrl);
+			case POST: return new HttpPost(completeUrl);
+			case PUT: return new HttpPut(completeUrl);
+			case DELETE: return new HttpDelete(completeUrl);
+			case HEAD: return new HttpHead(completeUrl);
+			case OPTIONS: return new HttpOptions(completeUrl);
+			case TRACE: return new HttpTrace(completeUrl);
+			case PATCH: return new HttpPatch(completeUrl);
+			default: throw new IllegalArgumentException("Unsupported http verb " + httpVerb);
+		}
+	}
+}
@@ -0,0 +1,79 @@
+/**
+ *
+ */
+package org.agave.client.common;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spaces calls evenly so no more than a fixed number of permits are handed
+ * out per second. Callers over the limit are given the next free slot, in
+ * the order they arrived, unless it is further away than they are willing
+ * to wait.
+ *
+ * @author dooley
+ *
+ */
+public class RateLimiter {
+
+	private final long intervalNanos;
+	private long nextPermitNanos;
+
+	/**
+	 * @param permitsPerSecond the maximum rate of permits, greater than zero
+	 */
+	public RateLimiter(double permitsPerSecond) {
+		if (!(permitsPerSecond > 0)) {
+			throw new IllegalArgumentException("Permits per second must be greater than zero");
+		}
+		this.intervalNanos = Math.max(1, (long)(TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+		this.nextPermitNanos = System.nanoTime();
+	}
+
+	/**
+	 * Waits for a permit unless the next free slot is more than
+	 * {@code timeout} away, in which case no permit is taken.
+	 *
+	 * @param timeout the longest acceptable wait
+	 * @param unit the unit of {@code timeout}
+	 * @return true if a permit was acquired
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean tryAcquire(long timeout, TimeUnit unit) throws InterruptedException {
+		long waitNanos = reserve(timeout, unit);
+		if (waitNanos < 0) {
+			return false;
+		}
+		if (waitNanos > 0) {
+			TimeUnit.NANOSECONDS.sleep(waitNanos);
+		}
+		return true;
+	}
+
+	/**
+	 * Reserves the next free slot without waiting for it, for callers which
+	 * delay their work on a timer rather than blocking a thread. Slots more
+	 * than {@code timeout} away are refused.
+	 *
+	 * @param timeout the longest acceptable wait
+	 * @param unit the unit of {@code timeout}
+	 * @return nanoseconds until the reserved slot, zero if it is now, or
+	 * -1 if the slot was refused
+	 */
+	public synchronized long reserve(long timeout, TimeUnit unit) {
+		long now = System.nanoTime();
+		long slot = nextPermitNanos - now > 0 ? nextPermitNanos : now;
+		if (slot - now > unit.toNanos(timeout)) {
+			return -1;
+		}
+		nextPermitNanos = slot + intervalNanos;
+		return slot - now;
+	}
+
+	/**
+	 * @return true if a permit taken now would have to wait
+	 */
+	public synchronized boolean isSaturated() {
+		return nextPermitNanos - System.nanoTime() > 0;
+	}
+}
@@ -0,0 +1,177 @@
+/**
+ * 
+ */
+package org.agave.client.common;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+/**
+ * Collapses concurrent calls for the same key into a single execution. The
+ * first caller for a key runs the task; every caller arriving while it is
+ * in progress waits on, and shares, its result or failure. Nothing is 
+ * remembered once the task completes, so callers wanting to cache results 
+ * must do so themselves.
+ * 
+ * @author dooley
+ *
+ * @param <K> the key type
+ * @param <V> the result type
+ */
+public class SingleFlight<K, V> {
+	
+	private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<K, CompletableFuture<V>>();
+	
+	/**
+	 * Runs the task on the calling thread unless a call for the same key is
+	 * already in progress, in which case waits up to {@code timeout} for
+	 * that call's result.
+	 * 
+	 * @param key the key identifying the work
+	 * @param task the work to run
+	 * @param timeout the maximum time to wait on another caller's execution
+	 * @param unit the unit of {@code timeout}
+	 * @return the result of the task
+	 * @throws TimeoutException if another caller's execution did not finish in time
+	 * @throws Exception whatever the task threw
+	 */
+	public V execute(K key, Callable<V> task, long timeout, TimeUnit unit) 
+	throws Exception 
+	{
+		CompletableFuture<V> future = new CompletableFuture<V>();
+		CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+		if (existing == null) {
+			run(key, task, future);
+			return await(future, 0, TimeUnit.MILLISECONDS);
+		}
+		
+		return await(existing, timeout, unit);
+	}
+	
+	/**
+	 * Runs the task on the executor unless a call for the same key is already
+	 * in progress, in which case the future of that call is returned.
+	 * 
+	 * @param key the key identifying the work
+	 * @param task the work to run
+	 * @param executor the executor to run the task on
+	 * @return a future completing with the task's result
+	 */
+	public CompletableFuture<V> executeAsync(final K key, final Callable<V> task, Executor executor) 
+	{
+		final CompletableFuture<V> future = new CompletableFuture<V>();
+		CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+		if (existing != null) {
+			return existing;
+		}
+		
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					SingleFlight.this.run(key, task, future);
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			inFlight.remove(key, future);
+			future.completeExceptionally(e);
+		}
+		
+		return future;
+	}
+	
+	/**
+	 * Starts the asynchronous task unless a call for the same key is already
+	 * in progress, in which case the future of that call is returned. Unlike
+	 * {@link #executeAsync(Object, Callable, Executor)} the task only starts
+	 * its work and returns a stage, so no thread is held while it runs.
+	 *
+	 * @param key the key identifying the work
+	 * @param task starts the work and returns the stage completing with its result
+	 * @return a future completing with the task's result
+	 */
+	public CompletableFuture<V> compose(final K key, Callable<? extends CompletionStage<V>> task)
+	{
+		final CompletableFuture<V> future = new CompletableFuture<V>();
+		CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+		if (existing != null) {
+			return existing;
+		}
+
+		CompletionStage<V> stage;
+		try {
+			stage = task.call();
+		}
+		catch (Throwable e) {
+			inFlight.remove(key, future);
+			future.completeExceptionally(e);
+			return future;
+		}
+
+		stage.whenComplete(new BiConsumer<V, Throwable>() {
+			@Override
+			public void accept(V result, Throwable error) {
+				inFlight.remove(key, future);
+				if (error != null) {
+					future.completeExceptionally(Futures.unwrap(error));
+				} else {
+					future.complete(result);
+				}
+			}
+		});
+
+		return future;
+	}
+
+	/**
+	 * @param key the key identifying the work
+	 * @return true if a call for the key is currently in progress
+	 */
+	public boolean isInFlight(K key) {
+		return inFlight.containsKey(key);
+	}
+	
+	private void run(K key, Callable<V> task, CompletableFuture<V> future) {
+		try {
+			future.complete(task.call());
+		}
+		catch (Throwable e) {
+			future.completeExceptionally(e);
+		}
+		finally {
+			inFlight.remove(key, future);
+		}
+	}
+	
+	/**
+	 * Waits on the future, rethrowing the task's own exception rather than 
+	 * the {@link ExecutionException} wrapping it. A timeout of zero or less
+	 * waits indefinitely.
+	 */
+	public static <T> T await(CompletableFuture<T> future, long timeout, TimeUnit unit) 
+	throws Exception 
+	{
+		try {
+			return timeout > 0 ? future.get(timeout, unit) : future.get();
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception)cause;
+			} else if (cause instanceof Error) {
+				throw (Error)cause;
+			} else {
+				throw e;
+			}
+		}
+	}
+}